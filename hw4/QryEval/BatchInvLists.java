@@ -0,0 +1,180 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  Evaluated inverted lists that several queries of a batch share.
+ *  Before the batch is evaluated, its queries are parsed and the
+ *  QryIop subtrees that occur in more than one query are counted (see
+ *  plan).  The first query that evaluates such a subtree keeps its
+ *  list here, and the later queries use it, each with its own
+ *  iterators.  A list is released when the last query that uses it
+ *  gets it, so only lists that will be used again are kept.
+ *  <p>
+ *  Lists are keyed by the canonical string of the query operator, as
+ *  in InvListCache.  Identical subtrees within one query share a list
+ *  directly (see QryIop.setListSource), so each query counts a
+ *  subtree once.  The methods are synchronized, so queries of a batch
+ *  may be evaluated by several threads.
+ *  </p>
+ */
+public class BatchInvLists {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of queries that haven't gotten each shared list yet.
+   */
+  private HashMap<String,Integer> remainingUses =
+    new HashMap<String,Integer> ();
+
+  /**
+   *  The shared lists that have been evaluated.
+   */
+  private HashMap<String,InvList> lists = new HashMap<String,InvList> ();
+
+  private long hits = 0;
+  private int sharedKeys = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Find the subtrees that occur in more than one query of a batch.
+   *  @param queries The parsed queries of the batch.
+   *  @return The shared lists of the batch.
+   */
+  public static BatchInvLists plan (List<Qry> queries) {
+
+    HashMap<String,Integer> uses = new HashMap<String,Integer> ();
+
+    for (Qry q : queries) {
+      for (String key : getKeys (q)) {
+        Integer n = uses.get (key);
+        uses.put (key, (n == null) ? 1 : n + 1);
+      }
+    }
+
+    BatchInvLists batch = new BatchInvLists ();
+
+    for (Map.Entry<String,Integer> e : uses.entrySet ()) {
+      if (e.getValue () > 1) {
+        batch.remainingUses.put (e.getKey (), e.getValue ());
+      }
+    }
+
+    batch.sharedKeys = batch.remainingUses.size ();
+    return batch;
+  }
+
+  /**
+   *  Get a shared list, and record that one more query used it.
+   *  @param key The canonical string of the query operator.
+   *  @return The list, or null if it isn't shared or hasn't been
+   *  evaluated yet.
+   */
+  public synchronized InvList get (String key) {
+
+    InvList list = this.release (key);
+
+    if (list != null) {
+      this.hits ++;
+    }
+
+    return list;
+  }
+
+  /**
+   *  Indicates whether a list is shared by queries of the batch that
+   *  haven't gotten it yet.
+   *  @param key The canonical string of the query operator.
+   *  @return True if the list is shared, otherwise false.
+   */
+  public synchronized boolean isShared (String key) {
+    return this.remainingUses.containsKey (key);
+  }
+
+  /**
+   *  Get the canonical strings of the QryIop subtrees of a query that
+   *  don't share the list of an identical subtree in the same query.
+   */
+  private static Set<String> getKeys (Qry q) {
+    Set<String> keys = new HashSet<String> ();
+    addKeys (q, keys);
+    return keys;
+  }
+
+  private static void addKeys (Qry q, Set<String> keys) {
+
+    if (q instanceof QryIop) {
+      if (((QryIop) q).getListSource () != null) {
+        return;
+      }
+      keys.add (((QryIop) q).getCanonicalString ());
+    }
+
+    for (Qry q_i : q.args) {
+      addKeys (q_i, keys);
+    }
+  }
+
+  /**
+   *  Keep an evaluated list if later queries of the batch use it.
+   *  @param key The canonical string of the query operator.
+   *  @param list The list.  It must not be modified later.
+   */
+  public synchronized void put (String key, InvList list) {
+    if (this.remainingUses.containsKey (key)) {
+      this.lists.put (key, list);
+    }
+  }
+
+  /**
+   *  Record that one more query used a list, and drop the list if no
+   *  later query uses it.
+   *  @return The list, or null if it isn't shared or hasn't been
+   *  evaluated yet.
+   */
+  private InvList release (String key) {
+
+    Integer n = this.remainingUses.get (key);
+
+    if (n == null) {
+      return null;
+    }
+
+    InvList list = this.lists.get (key);
+
+    if (n > 1) {
+      this.remainingUses.put (key, n - 1);
+    } else {
+      this.remainingUses.remove (key);
+      this.lists.remove (key);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Record that a query was answered without initializing its query
+   *  operators (e.g., from the query result cache), so the lists that
+   *  it would have used can be released sooner.
+   *  @param q The query.
+   */
+  public synchronized void skip (Qry q) {
+    for (String key : getKeys (q)) {
+      this.release (key);
+    }
+  }
+
+  /**
+   *  Get a string version of the batch statistics.
+   *  @return The batch statistics.
+   */
+  @Override public synchronized String toString () {
+    return ("Batch lists:  shared=" + this.sharedKeys +
+            ", hits=" + this.hits +
+            ", held=" + this.lists.size ());
+  }
+}
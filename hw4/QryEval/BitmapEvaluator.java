@@ -0,0 +1,263 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates an UnrankedBoolean or RankedBoolean query with set
+ *  algebra on compressed docid sets (see DocBitmap), instead of
+ *  finding matches one document at a time.  The inverted list of each
+ *  SCORE operator's argument (a term, #SYN, #NEAR, or #WINDOW, which
+ *  initialize evaluates) is converted to a set.  #AND intersects its
+ *  arguments' sets, and #OR unites them, smallest sets first.
+ *  <p>
+ *  Every UnrankedBoolean match scores 1, so no scores are computed.
+ *  For RankedBoolean, each operator also lists its docids in ascending
+ *  order with a parallel array of scores, so scores cost as much as
+ *  the set, not an array of every docid.  A SCORE operator's score is
+ *  the tf, #AND takes the minimum of its arguments' scores, and #OR
+ *  takes the maximum; the arguments' lists are merged to combine
+ *  them.  Like QrySopAnd and QrySopOr, an argument is only scored if
+ *  its first argument has a match at or after the document, so the
+ *  scores are identical to document-at-a-time scores.
+ *  </p>
+ */
+public class BitmapEvaluator {
+
+  /**
+   *  The set of documents that a query operator matches, and their
+   *  RankedBoolean scores.
+   */
+  private static class Result {
+
+    DocBitmap docs;
+
+    /**
+     *  The docids of docs in ascending order, or null for
+     *  UnrankedBoolean.
+     */
+    int[] docids;
+
+    /**
+     *  The score of each document in docids, or null for
+     *  UnrankedBoolean.
+     */
+    int[] scores;
+  }
+
+  /**
+   *  Indicates whether a query can be evaluated with docid sets.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if r is a Boolean model and q has only #AND, #OR, and
+   *  SCORE operators above its inverted list operators.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! ((r instanceof RetrievalModelUnrankedBoolean) ||
+           (r instanceof RetrievalModelRankedBoolean))) {
+      return false;
+    }
+
+    return isBooleanTree (q);
+  }
+
+  /**
+   *  Evaluate an initialized query, adding every matching document to
+   *  a score list in docid order.
+   *  @param q The query.  canEvaluate must be true for it.
+   *  @param r The retrieval model.
+   *  @param results The score list.
+   *  @return The number of matching documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int evaluate (Qry q, RetrievalModel r, ScoreList results)
+    throws IOException {
+
+    boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+    Result result = evaluate (q, r, ranked, new IdentityHashMap<Qry,Result> ());
+    int[] docids = ranked ? result.docids : result.docs.toArray ();
+
+    for (int k = 0; k < docids.length; k++) {
+      results.add (docids[k], ranked ? result.scores[k] : 1.0);
+    }
+
+    return docids.length;
+  }
+
+  /**
+   *  Evaluate a query operator.  Operators that occur more than once
+   *  in the query are evaluated once.
+   */
+  private static Result evaluate (Qry q, RetrievalModel r, boolean ranked,
+                                  Map<Qry,Result> evaluated)
+    throws IOException {
+
+    Result result = evaluated.get (q);
+
+    if (result != null) {
+      return result;
+    }
+
+    result = new Result ();
+
+    if (q instanceof QrySopScore) {
+
+      //  Walk the inverted list.
+
+      QryIop list = (QryIop) q.args.get (0);
+      int[] docids = new int[16];
+      int[] tfs = new int[16];
+      int size = 0;
+
+      result.docs = new DocBitmap ();
+
+      while (list.docIteratorHasMatch (r)) {
+        int docid = list.docIteratorGetMatch ();
+
+        result.docs.add (docid);
+
+        if (ranked) {
+          if (size == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * size);
+            tfs = Arrays.copyOf (tfs, 2 * size);
+          }
+
+          docids[size] = docid;
+          tfs[size] = list.getTf ();
+          size ++;
+        }
+
+        list.docIteratorAdvancePast (docid);
+      }
+
+      if (ranked) {
+        result.docids = Arrays.copyOf (docids, size);
+        result.scores = Arrays.copyOf (tfs, size);
+      }
+    } else {
+      int n = q.args.size ();
+      Result[] args = new Result[n];
+      Integer[] order = new Integer[n];
+
+      for (int i = 0; i < n; i++) {
+        args[i] = evaluate (q.args.get (i), r, ranked, evaluated);
+        order[i] = i;
+      }
+
+      //  Combine the smallest sets first, which keeps intermediate
+      //  intersections small.
+
+      final Result[] sorted = args;
+
+      Arrays.sort (order, new Comparator<Integer> () {
+          public int compare (Integer a, Integer b) {
+            return Integer.compare (sorted[a].docs.cardinality (),
+                                    sorted[b].docs.cardinality ());
+          }
+        });
+
+      boolean and = (q instanceof QrySopAnd);
+
+      result.docs = args[order[0]].docs;
+
+      for (int j = 1; j < n; j++) {
+        result.docs = and ? result.docs.and (args[order[j]].docs)
+                          : result.docs.or (args[order[j]].docs);
+      }
+
+      if (ranked) {
+        result.docids = result.docs.toArray ();
+        result.scores = combineScores (q, args, result.docids, and,
+                                       evaluated);
+      }
+    }
+
+    evaluated.put (q, result);
+    return result;
+  }
+
+  /**
+   *  Compute the RankedBoolean scores of an #AND or #OR operator by
+   *  merging each argument's docids with its own.  An argument is
+   *  scored for a document only if the argument's first argument has a
+   *  match at or after it.  #OR documents that an argument doesn't
+   *  have keep the score 0 for it.
+   */
+  private static int[] combineScores (Qry q, Result[] args, int[] docids,
+                                      boolean and,
+                                      Map<Qry,Result> evaluated) {
+
+    int[] scores = new int[docids.length];
+
+    if (and) {
+      Arrays.fill (scores, Integer.MAX_VALUE);
+    }
+
+    for (int i = 0; i < args.length; i++) {
+
+      //  The first argument of a SCORE operator is its inverted list,
+      //  which has the same docids.  Other first arguments were
+      //  evaluated with the argument.
+
+      Qry first = q.args.get (i).args.get (0);
+      int lastFirst = (first instanceof QryIop) ?
+        args[i].docs.last () :
+        evaluated.get (first).docs.last ();
+      int[] d = args[i].docids;
+      int[] s = args[i].scores;
+      int k = 0;
+      int c = 0;
+
+      while ((k < docids.length) && (c < d.length) &&
+             (docids[k] <= lastFirst)) {
+        if (docids[k] < d[c]) {
+          k ++;
+        } else if (docids[k] > d[c]) {
+          c ++;
+        } else {
+          scores[k] = and ? Math.min (scores[k], s[c])
+                          : Math.max (scores[k], s[c]);
+          k ++;
+          c ++;
+        }
+      }
+    }
+
+    if (and) {
+      for (int k = 0; k < scores.length; k++) {
+        if (scores[k] == Integer.MAX_VALUE) {
+          scores[k] = 0;
+        }
+      }
+    }
+
+    return scores;
+  }
+
+  /**
+   *  Indicates whether a query has only #AND, #OR, and SCORE operators
+   *  above its inverted list operators.
+   */
+  private static boolean isBooleanTree (Qry q) {
+
+    if (q instanceof QrySopScore) {
+      return (q.args.get (0) instanceof QryIop);
+    }
+
+    if (! (((q instanceof QrySopAnd) || (q instanceof QrySopOr)) &&
+           (q.args.size () > 0))) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! isBooleanTree (q_i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,434 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+/**
+ *  Block-max metadata for the terms of an index, stored in a sidecar
+ *  file in the index directory.  Each term's inverted list is divided
+ *  into blocks of postings (64 by default).  For each block, the
+ *  sidecar records the block's last docid, the largest BM25 tf weight
+ *  (the BM25 score without the idf and query weight factors), and the
+ *  largest Indri gain, which is the amount that a match adds to the
+ *  Indri default score:  (1 - lambda) * tf / (length + mu).  Both
+ *  depend on retrieval model parameters, which are recorded in the
+ *  header; the metadata is only used when the parameters match.
+ *  <p>
+ *  Run the class to build the sidecar, for example:
+ *  </p>
+ *  <pre>
+ *    java BlockMaxIndex -index INDEX_PATH -bm25 1.2 0.75 -indri 2500 0.4
+ *  </pre>
+ *  <p>
+ *  QryEval memory-maps the sidecar (see Idx.getBlockMaxIndex).  The
+ *  sidecar records the index version, so a sidecar for another version
+ *  of the index is ignored.  Values are stored as floats rounded up,
+ *  so they remain upper bounds.
+ *  </p>
+ *  <p>
+ *  Sidecar format:  magic, format version, index version, block size,
+ *  k_1, b, mu, lambda, number of terms, number of blocks, number of key
+ *  bytes, key offsets (numTerms + 1 ints), first block of each term
+ *  (numTerms + 1 ints), block last docids, BM25 maxima, Indri maxima,
+ *  and key bytes.  The header and keys are shared with the other
+ *  sidecars (see SidecarFile).
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String SIDECAR_NAME = "blockmax.qryeval";
+
+  /**
+   *  The default number of postings per block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 64;
+
+  private static final int MAGIC = 0x5145424d;		// "QEBM"
+  private static final int FORMAT = 1;
+  private static final int HEADER_BYTES =
+    4 + 4 + 8 + 4 + 8 + 8 + 8 + 8 + 4 + 4 + 4;
+
+  static String usage =
+    "Usage:  java BlockMaxIndex -index INDEX_PATH [options]\n\n" +
+    "where options include\n" +
+    "    -bm25 K_1 B\t\tBM25 parameters (default 1.2 0.75)\n" +
+    "    -indri MU LAMBDA\tIndri parameters (default 2500 0.4)\n" +
+    "    -block N\t\tpostings per block (default " + DEFAULT_BLOCK_SIZE + ")\n";
+
+  private int blockSize;
+  private double k_1, b, mu, lambda;
+  private int numTerms;
+  private IntBuffer keyOffsets;
+  private IntBuffer blockStarts;
+  private IntBuffer lastDocids;
+  private FloatBuffer bm25Maxima;
+  private FloatBuffer indriMaxima;
+  private ByteBuffer keys;
+
+  /**
+   *  The block-max metadata of one inverted list:  the last docid of
+   *  each block and the largest score contribution in each block.
+   */
+  public static class Blocks {
+
+    /**
+     *  The last docid of each block, in ascending order.
+     */
+    public final int[] lastDocids;
+
+    /**
+     *  The largest score contribution of each block.
+     */
+    public final double[] maxScores;
+
+    /**
+     *  The largest score contribution of any block.
+     */
+    public final double maxScore;
+
+    /**
+     *  @param lastDocids The last docid of each block.
+     *  @param maxScores The largest score contribution of each block.
+     */
+    public Blocks (int[] lastDocids, double[] maxScores) {
+      double max = 0.0;
+
+      for (double s : maxScores) {
+        max = Math.max (max, s);
+      }
+
+      this.lastDocids = lastDocids;
+      this.maxScores = maxScores;
+      this.maxScore = max;
+    }
+
+    /**
+     *  Find the block that may contain a document.
+     *  @param docid An internal docid.
+     *  @param from A block to start searching from, usually the block
+     *  found by the previous search.
+     *  @return The first block whose last docid is at least docid, or
+     *  the number of blocks if there is none.
+     */
+    public int findBlock (int docid, int from) {
+      if ((from > 0) && (from <= this.lastDocids.length) &&
+          (this.lastDocids[from - 1] >= docid)) {
+        from = 0;
+      }
+
+      //  Callers move forward a block or two at a time, so check the
+      //  starting block, then gallop to bracket the docid.
+
+      int n = this.lastDocids.length;
+
+      if ((from >= n) || (this.lastDocids[from] >= docid)) {
+        return from;
+      }
+
+      int lo = from + 1;
+      int step = 1;
+
+      while ((lo + step < n) && (this.lastDocids[lo + step - 1] < docid)) {
+        lo += step;
+        step *= 2;
+      }
+
+      int hi = Math.min (lo + step, n);
+
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+
+        if (this.lastDocids[mid] < docid) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      return lo;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private BlockMaxIndex (ByteBuffer table) {
+    this.blockSize = table.getInt (16);
+    this.k_1 = table.getDouble (20);
+    this.b = table.getDouble (28);
+    this.mu = table.getDouble (36);
+    this.lambda = table.getDouble (44);
+    this.numTerms = table.getInt (52);
+
+    int numBlocks = table.getInt (56);
+    int start = HEADER_BYTES;
+
+    this.keyOffsets = SidecarFile.slice (table, start, 4 * (this.numTerms + 1)).asIntBuffer ();
+    start += 4 * (this.numTerms + 1);
+    this.blockStarts = SidecarFile.slice (table, start, 4 * (this.numTerms + 1)).asIntBuffer ();
+    start += 4 * (this.numTerms + 1);
+    this.lastDocids = SidecarFile.slice (table, start, 4 * numBlocks).asIntBuffer ();
+    start += 4 * numBlocks;
+    this.bm25Maxima = SidecarFile.slice (table, start, 4 * numBlocks).asFloatBuffer ();
+    start += 4 * numBlocks;
+    this.indriMaxima = SidecarFile.slice (table, start, 4 * numBlocks).asFloatBuffer ();
+    start += 4 * numBlocks;
+    this.keys = SidecarFile.slice (table, start, table.limit () - start);
+  }
+
+  /**
+   *  Open the block-max sidecar of an index.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @return The block-max metadata, or null if the index doesn't
+   *  have a current sidecar.
+   */
+  public static BlockMaxIndex open (IndexReader reader, String indexPath) {
+
+    ByteBuffer table =
+      SidecarFile.map (reader, new File (indexPath, SIDECAR_NAME),
+                       MAGIC, FORMAT, HEADER_BYTES);
+
+    if ((table == null) ||
+        (table.limit () != HEADER_BYTES +
+                            8L * (table.getInt (52) + 1) +
+                            12L * table.getInt (56) +
+                            table.getInt (60))) {
+      return null;
+    }
+
+    return new BlockMaxIndex (table);
+  }
+
+  /**
+   *  Get the block-max metadata of a term.
+   *  @param field The field.
+   *  @param term The term.
+   *  @param indri True for Indri gains, false for BM25 tf weights.
+   *  @return The term's blocks, or null if the term isn't in the index.
+   */
+  public Blocks getBlocks (String field, String term, boolean indri) {
+
+    int t = SidecarFile.findKey (this.keyOffsets, this.keys, this.numTerms,
+                                 field, term);
+
+    if (t < 0) {
+      return null;
+    }
+
+    int first = this.blockStarts.get (t);
+    int n = this.blockStarts.get (t + 1) - first;
+    int[] last = new int[n];
+    double[] max = new double[n];
+    FloatBuffer maxima = indri ? this.indriMaxima : this.bm25Maxima;
+
+    for (int i = 0; i < n; i++) {
+      last[i] = this.lastDocids.get (first + i);
+      max[i] = maxima.get (first + i);
+    }
+
+    return new Blocks (last, max);
+  }
+
+  /**
+   *  Indicates whether the BM25 maxima were computed with the
+   *  specified parameters.
+   *  @param k_1 The k_1 parameter.
+   *  @param b The b parameter.
+   *  @return True if the parameters match, otherwise false.
+   */
+  public boolean hasBM25 (double k_1, double b) {
+    return (this.k_1 == k_1) && (this.b == b);
+  }
+
+  /**
+   *  Indicates whether the Indri maxima were computed with the
+   *  specified parameters.
+   *  @param mu The mu parameter.
+   *  @param lambda The lambda parameter.
+   *  @return True if the parameters match, otherwise false.
+   */
+  public boolean hasIndri (double mu, double lambda) {
+    return (this.mu == mu) && (this.lambda == lambda);
+  }
+
+  /**
+   *  Round a value up to the nearest float.
+   */
+  private static float roundUp (double v) {
+    float f = (float) v;
+    return (f < v) ? Math.nextUp (f) : f;
+  }
+
+  /**
+   *  Build the block-max sidecar of an index.
+   *  @param indexPath The directory that contains the index.
+   *  @param blockSize The number of postings per block.
+   *  @param k_1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param mu The Indri mu parameter.
+   *  @param lambda The Indri lambda parameter.
+   *  @throws IOException Error accessing the index or writing the sidecar.
+   */
+  public static void build (String indexPath, int blockSize,
+                            double k_1, double b, double mu, double lambda)
+    throws IOException {
+
+    Idx.open (indexPath);
+
+    IndexReader reader = Idx.INDEXREADER;
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    SidecarFile.Keys keys = new SidecarFile.Keys ();
+    SidecarFile.IntArray blockStarts = new SidecarFile.IntArray ();
+    SidecarFile.IntArray lastDocids = new SidecarFile.IntArray ();
+    SidecarFile.IntArray bm25 = new SidecarFile.IntArray ();
+    SidecarFile.IntArray indri = new SidecarFile.IntArray ();
+
+    blockStarts.add (0);
+
+    //  Fields are visited in name order and Lucene enumerates terms
+    //  in unsigned byte order, so keys are written in sorted order.
+
+    for (String field : new TreeSet<String> (MultiFields.getIndexedFields (reader))) {
+
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if ((terms == null) || (! terms.hasPositions ())) {
+        continue;
+      }
+
+      int ordinal = Idx.getFieldOrdinal (field);
+      double avgLength = Idx.getCollectionStats ().getAvgFieldLength (field);
+      TermsEnum te = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = te.next ()) != null) {
+
+        docs = te.docs (liveDocs, docs, DocsEnum.FLAG_FREQS);
+
+        int inBlock = 0;
+        int last = -1;
+        double maxBm25 = 0.0;
+        double maxIndri = 0.0;
+        boolean any = false;
+
+        while (docs.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          double tf = docs.freq ();
+          double length = Idx.getFieldLength (ordinal, docs.docID ());
+
+          last = docs.docID ();
+          maxBm25 = Math.max (maxBm25,
+            tf * (k_1 + 1) / (tf + k_1 * ((1 - b) + b * length / avgLength)));
+          maxIndri = Math.max (maxIndri, (1 - lambda) * tf / (length + mu));
+          any = true;
+
+          if (++inBlock == blockSize) {
+            lastDocids.add (last);
+            bm25.add (Float.floatToRawIntBits (roundUp (maxBm25)));
+            indri.add (Float.floatToRawIntBits (roundUp (maxIndri)));
+            inBlock = 0;
+            maxBm25 = maxIndri = 0.0;
+          }
+        }
+
+        if (! any) {
+          continue;
+        }
+
+        if (inBlock > 0) {
+          lastDocids.add (last);
+          bm25.add (Float.floatToRawIntBits (roundUp (maxBm25)));
+          indri.add (Float.floatToRawIntBits (roundUp (maxIndri)));
+        }
+
+        keys.add (field, term);
+        blockStarts.add (lastDocids.size ());
+      }
+    }
+
+    //  Write the sidecar to a temporary file and rename it.
+
+    int numTerms = keys.getNumTerms ();
+    File sidecar = new File (indexPath, SIDECAR_NAME);
+    File tmp = new File (sidecar.getPath () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (tmp)))) {
+
+      SidecarFile.writeHeader (out, reader, MAGIC, FORMAT);
+      out.writeInt (blockSize);
+      out.writeDouble (k_1);
+      out.writeDouble (b);
+      out.writeDouble (mu);
+      out.writeDouble (lambda);
+      out.writeInt (numTerms);
+      out.writeInt (lastDocids.size ());
+      out.writeInt (keys.getNumBytes ());
+      keys.writeOffsets (out);
+      blockStarts.write (out);
+      lastDocids.write (out);
+      bm25.write (out);
+      indri.write (out);
+      keys.writeBytes (out);
+    }
+
+    SidecarFile.rename (tmp, sidecar);
+
+    System.out.println ("Wrote " + sidecar + ":  " + numTerms + " terms, " +
+                        lastDocids.size () + " blocks");
+  }
+
+  /**
+   *  Build the block-max sidecar of an index.  Run it to see a simple
+   *  usage message.
+   *  @param args The command line arguments.
+   *  @throws IOException Error accessing the index or writing the sidecar.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    double k_1 = 1.2, b = 0.75, mu = 2500, lambda = 0.4;
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("-index".equals (args[i])) {
+          indexPath = args[++i];
+        } else if ("-bm25".equals (args[i])) {
+          k_1 = Double.parseDouble (args[++i]);
+          b = Double.parseDouble (args[++i]);
+        } else if ("-indri".equals (args[i])) {
+          mu = Double.parseDouble (args[++i]);
+          lambda = Double.parseDouble (args[++i]);
+        } else if ("-block".equals (args[i])) {
+          blockSize = Integer.parseInt (args[++i]);
+        } else {
+          indexPath = null;
+          break;
+        }
+      }
+    } catch (RuntimeException ex) {
+      indexPath = null;
+    }
+
+    if ((indexPath == null) || (blockSize < 1)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    build (indexPath, blockSize, k_1, b, mu, lambda);
+  }
+}
@@ -0,0 +1,283 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates a BM25 #SUM query or an Indri #WSUM query with Block-Max
+ *  WAND, finding the same top-k results as scoring every matching
+ *  document.
+ *  <p>
+ *  Each argument's inverted list is divided into blocks that have an
+ *  upper bound on the argument's score contribution (see
+ *  QrySopScore.getBlockMaxScores).  For BM25 the contribution is the
+ *  argument's score.  For Indri #WSUM every argument contributes its
+ *  weighted default score to every document, so the contribution is
+ *  the weighted gain of a match over the default score, and the sum of
+ *  the largest possible weighted default scores is added to every
+ *  bound.
+ *  </p>
+ *  <p>
+ *  The arguments are kept in docid order.  The pivot is the first
+ *  argument at which the sum of whole-list bounds reaches the
+ *  threshold of the top-k list; no document before the pivot's docid
+ *  can enter the list.  The block bounds of the arguments up to the
+ *  pivot are then checked for the pivot docid.  If they can't reach
+ *  the threshold, every document up to the end of the smallest of
+ *  those blocks is skipped, otherwise the arguments are moved to the
+ *  pivot docid and the document is scored.  A document is only
+ *  skipped when its bound is strictly below the threshold (see
+ *  MaxScoreEvaluator.canSkip), and scores are computed in argument
+ *  order exactly as QrySopSum and QrySopWSum do, so results are
+ *  identical to exhaustive evaluation.
+ *  </p>
+ */
+public class BlockMaxWandEvaluator {
+
+  /**
+   *  Indicates whether a query can be evaluated with Block-Max WAND.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is a BM25 #SUM or an Indri #WSUM of SCORE
+   *  operators, with non-negative weights.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! (((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25)) ||
+           ((q instanceof QrySopWSum) && (r instanceof RetrievalModelIndri)))) {
+      return false;
+    }
+
+    //  The Indri bounds assume that the default score shrinks and the
+    //  gain of a match grows as the field gets shorter.
+
+    if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+
+      if ((indri.getLambda () < 0.0) || (indri.getLambda () > 1.0) ||
+          (indri.getMu () < 0.0)) {
+        return false;
+      }
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    //  A negative weight turns an argument's upper bound into a lower
+    //  bound, so documents could be skipped that belong in the top n.
+
+    if (q instanceof QrySopWSum) {
+      for (double weight : ((QrySopWSum) q).weights) {
+        if (weight < 0.0) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query, adding the top documents to a
+   *  bounded score list.
+   *  @param q The query.  canEvaluate must be true for it.
+   *  @param r The retrieval model.
+   *  @param results A bounded score list.
+   *  @return The number of documents that were scored completely.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int evaluate (Qry q, RetrievalModel r, ScoreList results)
+    throws IOException {
+
+    int n = q.args.size ();
+    boolean indri = (q instanceof QrySopWSum);
+    QrySopScore[] scorers = new QrySopScore[n];
+    QryIop[] iterators = new QryIop[n];
+    BlockMaxIndex.Blocks[] blocks = new BlockMaxIndex.Blocks[n];
+    double[] weights = new double[n];
+    double[] maxScores = new double[n];
+    int[] currentBlocks = new int[n];
+    int[] docids = new int[n];
+    double baseBound = 0.0;
+
+    for (int i = 0; i < n; i++) {
+      scorers[i] = (QrySopScore) q.args.get (i);
+      iterators[i] = (QryIop) scorers[i].args.get (0);
+      blocks[i] = scorers[i].getBlockMaxScores (r);
+      weights[i] = 1.0;
+
+      if (indri) {
+        QrySopWSum wsum = (QrySopWSum) q;
+        weights[i] = wsum.weights.get (i) / wsum.weightSum;
+        baseBound += weights[i] * scorers[i].getMaxDefaultScore (r);
+      }
+
+      maxScores[i] = weights[i] * blocks[i].maxScore;
+      docids[i] = iterators[i].docIteratorHasMatch (r) ?
+        iterators[i].docIteratorGetMatch () : Integer.MAX_VALUE;
+    }
+
+    //  order holds the arguments sorted by current docid.
+
+    int[] order = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+
+    sortByDocid (order, docids);
+
+    double threshold = results.getThreshold ();
+    int scored = 0;
+
+    while (true) {
+
+      //  Find the pivot.
+
+      double bound = baseBound;
+      int pivot = -1;
+
+      for (int j = 0; j < n; j++) {
+        if (docids[order[j]] == Integer.MAX_VALUE) {
+          break;
+        }
+
+        bound += maxScores[order[j]];
+
+        if (! MaxScoreEvaluator.canSkip (bound, threshold)) {
+          pivot = j;
+          break;
+        }
+      }
+
+      if (pivot < 0) {
+        break;
+      }
+
+      int docid = docids[order[pivot]];
+
+      while ((pivot + 1 < n) && (docids[order[pivot + 1]] == docid)) {
+        pivot ++;
+      }
+
+      //  Check the block bounds of the arguments up to the pivot.
+
+      double blockBound = baseBound;
+      int nextDocid = (pivot + 1 < n) ? docids[order[pivot + 1]] : Integer.MAX_VALUE;
+
+      for (int j = 0; j <= pivot; j++) {
+        int i = order[j];
+        BlockMaxIndex.Blocks b = blocks[i];
+
+        currentBlocks[i] = b.findBlock (docid, currentBlocks[i]);
+
+        if (currentBlocks[i] < b.lastDocids.length) {
+          blockBound += weights[i] * b.maxScores[currentBlocks[i]];
+
+          if (b.lastDocids[currentBlocks[i]] < Integer.MAX_VALUE) {
+            nextDocid = Math.min (nextDocid, b.lastDocids[currentBlocks[i]] + 1);
+          }
+        }
+      }
+
+      if (MaxScoreEvaluator.canSkip (blockBound, threshold)) {
+
+        //  No document up to nextDocid - 1 can enter the list.  Move
+        //  the argument with the largest bound.
+
+        int move = order[0];
+
+        for (int j = 1; j <= pivot; j++) {
+          if (maxScores[order[j]] > maxScores[move]) {
+            move = order[j];
+          }
+        }
+
+        advance (iterators[move], docids, move, nextDocid, r);
+        sortByDocid (order, docids);
+        continue;
+      }
+
+      if (docids[order[0]] != docid) {
+
+        //  Move an argument that is behind the pivot to the pivot.
+
+        int move = order[0];
+        advance (iterators[move], docids, move, docid, r);
+        sortByDocid (order, docids);
+        continue;
+      }
+
+      //  Every argument up to the pivot is on docid.  Score it.
+
+      double score = 0.0;
+
+      for (int i = 0; i < n; i++) {
+        if (indri) {
+          QrySopWSum wsum = (QrySopWSum) q;
+          double weight = wsum.weights.get (i);
+
+          if (docids[i] == docid) {
+            score += scorers[i].getScore (r) * weight / wsum.weightSum;
+          } else {
+            score += scorers[i].getDefaultScore (r, docid) * weight / wsum.weightSum;
+          }
+        } else if (docids[i] == docid) {
+          score += scorers[i].getScore (r);
+        }
+      }
+
+      results.add (docid, score);
+      threshold = results.getThreshold ();
+      scored ++;
+
+      for (int j = 0; j <= pivot; j++) {
+        int i = order[j];
+        advance (iterators[i], docids, i, docid + 1, r);
+      }
+
+      sortByDocid (order, docids);
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Advance an argument's iterator to a docid, and record where it is.
+   */
+  private static void advance (QryIop iterator, int[] docids, int i,
+                               int docid, RetrievalModel r) {
+
+    if (docid == Integer.MAX_VALUE) {
+      iterator.docIteratorFinish ();
+    } else {
+      iterator.docIteratorAdvanceTo (docid);
+    }
+
+    docids[i] = iterator.docIteratorHasMatch (r) ?
+      iterator.docIteratorGetMatch () : Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Insertion sort of argument numbers by current docid.  Only a few
+   *  arguments move between sorts, so the order is nearly sorted.
+   */
+  private static void sortByDocid (int[] order, int[] docids) {
+    for (int j = 1; j < order.length; j++) {
+      int i = order[j];
+      int k = j - 1;
+
+      while ((k >= 0) && (docids[order[k]] > docids[i])) {
+        order[k + 1] = order[k];
+        k--;
+      }
+
+      order[k + 1] = i;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  An immutable snapshot of the corpus-level statistics of an index:
+ *  the number of documents, and for each field, the number of
+ *  documents that contain the field and the sum of the field's
+ *  lengths.  Idx builds one snapshot per index when the index is
+ *  opened, so retrieval models never ask the IndexReader for these
+ *  values while scoring documents.
+ */
+public class CollectionStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final long numDocs;
+  private final Map<String,Long> docCounts;
+  private final Map<String,Long> sumOfFieldLengths;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Read the statistics of every indexed field from an index.
+   *  @param reader The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public CollectionStats (IndexReader reader) throws IOException {
+
+    Map<String,Long> counts = new HashMap<String,Long> ();
+    Map<String,Long> lengths = new HashMap<String,Long> ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      counts.put (field, (long) reader.getDocCount (field));
+      lengths.put (field, reader.getSumTotalTermFreq (field));
+    }
+
+    this.numDocs = reader.numDocs ();
+    this.docCounts = Collections.unmodifiableMap (counts);
+    this.sumOfFieldLengths = Collections.unmodifiableMap (lengths);
+  }
+
+  /**
+   *  Get the average length of the specified field, over the documents
+   *  that contain it.
+   *  @param fieldName The field name.
+   *  @return The average field length, or NaN if no document has the field.
+   */
+  public double getAvgFieldLength (String fieldName) {
+    return this.getSumOfFieldLengths (fieldName) /
+           (double) this.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName The field name.
+   *  @return The number of documents that contain the field.
+   */
+  public long getDocCount (String fieldName) {
+    Long count = this.docCounts.get (fieldName);
+    return (count == null) ? 0 : count;
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences.
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    Long length = this.sumOfFieldLengths.get (fieldName);
+    return (length == null) ? 0 : length;
+  }
+}
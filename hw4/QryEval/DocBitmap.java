@@ -0,0 +1,444 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  A compressed set of internal docids, organized like a roaring
+ *  bitmap.  Docids are divided into chunks of 65536 by their high 16
+ *  bits, and each non-empty chunk has a container for its low 16 bits.
+ *  A chunk with at most 4096 docids is a sorted array of chars (2 bytes
+ *  per docid); a denser chunk is a bitmap of 1024 longs (8 KB).  So a
+ *  sparse set costs about as much as an inverted list of docids, and a
+ *  dense set costs at most a bit per docid.  Intersection and union
+ *  work a chunk at a time:  a word at a time for bitmaps, and by
+ *  merging or probing for arrays.
+ *  <p>
+ *  Sets are built by adding docids in ascending order, and aren't
+ *  changed afterwards; and and or return new sets.
+ *  </p>
+ */
+public class DocBitmap {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The largest number of docids in an array container.
+   */
+  private static final int ARRAY_MAX = 4096;
+
+  private static final int BITMAP_WORDS = 1 << 10;
+
+  private int numChunks = 0;
+  private int[] keys = new int[4];		// High 16 bits of each chunk
+  private int[] sizes = new int[4];		// Docids in each chunk
+  private char[][] arrays = new char[4][];	// Array containers, or null
+  private long[][] bitmaps = new long[4][];	// Bitmap containers, or null
+  private int cardinality = 0;
+  private int lastAdded = -1;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Add a docid.  Docids must be added in ascending order.
+   *  @param docid The internal docid.
+   *  @throws IllegalArgumentException The docid isn't larger than the
+   *  last docid.
+   */
+  public void add (int docid) {
+
+    if (docid <= this.lastAdded) {
+      throw new IllegalArgumentException ("Docids must be added in ascending order.");
+    }
+
+    int key = docid >>> 16;
+    char low = (char) docid;
+    int c = this.numChunks - 1;
+
+    this.lastAdded = docid;
+
+    if ((c >= 0) && (this.keys[c] == key)) {
+      if (this.bitmaps[c] != null) {
+        this.bitmaps[c][low >>> 6] |= 1L << low;
+      } else if (this.sizes[c] == ARRAY_MAX) {
+        this.bitmaps[c] = toBitmap (this.arrays[c], this.sizes[c]);
+        this.arrays[c] = null;
+        this.bitmaps[c][low >>> 6] |= 1L << low;
+      } else {
+        if (this.sizes[c] == this.arrays[c].length) {
+          this.arrays[c] = Arrays.copyOf (this.arrays[c],
+            Math.min (ARRAY_MAX, 2 * this.arrays[c].length));
+        }
+        this.arrays[c][this.sizes[c]] = low;
+      }
+
+      this.sizes[c] ++;
+    } else {
+      char[] array = new char[16];
+      array[0] = low;
+      this.addChunk (key, 1, array, null);
+    }
+
+    this.cardinality ++;
+  }
+
+  /**
+   *  Append a container.
+   */
+  private void addChunk (int key, int size, char[] array, long[] bitmap) {
+
+    if (this.numChunks == this.keys.length) {
+      int n = 2 * this.numChunks;
+
+      this.keys = Arrays.copyOf (this.keys, n);
+      this.sizes = Arrays.copyOf (this.sizes, n);
+      this.arrays = Arrays.copyOf (this.arrays, n);
+      this.bitmaps = Arrays.copyOf (this.bitmaps, n);
+    }
+
+    this.keys[this.numChunks] = key;
+    this.sizes[this.numChunks] = size;
+    this.arrays[this.numChunks] = array;
+    this.bitmaps[this.numChunks] = bitmap;
+    this.numChunks ++;
+  }
+
+  /**
+   *  Append the result of combining two containers, as an array if it
+   *  is small enough.
+   */
+  private void addCombined (int key, int size, char[] array, long[] bitmap) {
+
+    if (size == 0) {
+      return;
+    }
+
+    if ((bitmap != null) && (size <= ARRAY_MAX)) {
+      array = toArray (bitmap, size);
+      bitmap = null;
+    }
+
+    this.addChunk (key, size, array, bitmap);
+    this.cardinality += size;
+  }
+
+  /**
+   *  Intersect two sets.
+   *  @param other The other set.
+   *  @return The docids that are in both sets.
+   */
+  public DocBitmap and (DocBitmap other) {
+
+    DocBitmap result = new DocBitmap ();
+    int i = 0;
+    int j = 0;
+
+    while ((i < this.numChunks) && (j < other.numChunks)) {
+      if (this.keys[i] < other.keys[j]) {
+        i ++;
+      } else if (this.keys[i] > other.keys[j]) {
+        j ++;
+      } else {
+        long[] b1 = this.bitmaps[i];
+        long[] b2 = other.bitmaps[j];
+
+        if ((b1 != null) && (b2 != null)) {
+          long[] b = new long[BITMAP_WORDS];
+          int size = 0;
+
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            b[w] = b1[w] & b2[w];
+            size += Long.bitCount (b[w]);
+          }
+
+          result.addCombined (this.keys[i], size, null, b);
+        } else if (b1 != null) {
+          result.addProbed (this.keys[i], other.arrays[j], other.sizes[j], b1);
+        } else if (b2 != null) {
+          result.addProbed (this.keys[i], this.arrays[i], this.sizes[i], b2);
+        } else {
+          char[] a1 = this.arrays[i];
+          char[] a2 = other.arrays[j];
+          int n1 = this.sizes[i];
+          int n2 = other.sizes[j];
+          char[] a = new char[Math.min (n1, n2)];
+          int size = 0;
+
+          for (int p = 0, q = 0; (p < n1) && (q < n2); ) {
+            if (a1[p] < a2[q]) {
+              p ++;
+            } else if (a1[p] > a2[q]) {
+              q ++;
+            } else {
+              a[size++] = a1[p];
+              p ++;
+              q ++;
+            }
+          }
+
+          result.addCombined (this.keys[i], size, a, null);
+        }
+
+        i ++;
+        j ++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Append the docids of an array container that are set in a bitmap
+   *  container.
+   */
+  private void addProbed (int key, char[] array, int n, long[] bitmap) {
+
+    char[] a = new char[n];
+    int size = 0;
+
+    for (int p = 0; p < n; p++) {
+      char low = array[p];
+
+      if ((bitmap[low >>> 6] & (1L << low)) != 0) {
+        a[size++] = low;
+      }
+    }
+
+    this.addCombined (key, size, a, null);
+  }
+
+  /**
+   *  Get the number of docids.
+   *  @return The number of docids.
+   */
+  public int cardinality () {
+    return this.cardinality;
+  }
+
+  /**
+   *  Indicates whether the set has a docid.
+   *  @param docid The internal docid.
+   *  @return True if the set has the docid, otherwise false.
+   */
+  public boolean contains (int docid) {
+
+    int c = Arrays.binarySearch (this.keys, 0, this.numChunks, docid >>> 16);
+
+    if (c < 0) {
+      return false;
+    }
+
+    char low = (char) docid;
+
+    if (this.bitmaps[c] != null) {
+      return (this.bitmaps[c][low >>> 6] & (1L << low)) != 0;
+    } else {
+      return Arrays.binarySearch (this.arrays[c], 0, this.sizes[c], low) >= 0;
+    }
+  }
+
+  /**
+   *  Get the largest docid.
+   *  @return The largest docid, or -1 if the set is empty.
+   */
+  public int last () {
+
+    if (this.numChunks == 0) {
+      return -1;
+    }
+
+    int c = this.numChunks - 1;
+
+    return (this.keys[c] << 16) | this.last (c);
+  }
+
+  /**
+   *  The largest low 16 bits in a container.
+   */
+  private int last (int c) {
+
+    if (this.bitmaps[c] == null) {
+      return this.arrays[c][this.sizes[c] - 1];
+    }
+
+    long[] b = this.bitmaps[c];
+    int w = BITMAP_WORDS - 1;
+
+    while (b[w] == 0) {
+      w --;
+    }
+
+    return (w << 6) + 63 - Long.numberOfLeadingZeros (b[w]);
+  }
+
+  /**
+   *  Unite two sets.
+   *  @param other The other set.
+   *  @return The docids that are in either set.
+   */
+  public DocBitmap or (DocBitmap other) {
+
+    DocBitmap result = new DocBitmap ();
+    int i = 0;
+    int j = 0;
+
+    while ((i < this.numChunks) || (j < other.numChunks)) {
+      if ((j == other.numChunks) ||
+          ((i < this.numChunks) && (this.keys[i] < other.keys[j]))) {
+        result.addCopy (this, i++);
+      } else if ((i == this.numChunks) || (this.keys[i] > other.keys[j])) {
+        result.addCopy (other, j++);
+      } else {
+        long[] b1 = this.bitmaps[i];
+        long[] b2 = other.bitmaps[j];
+
+        if ((b1 != null) || (b2 != null)) {
+
+          //  At least one container is a bitmap, so the result is.
+
+          long[] b = (b1 != null) ? b1.clone () : toBitmap (this.arrays[i], this.sizes[i]);
+          int size = 0;
+
+          if (b2 != null) {
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+              b[w] |= b2[w];
+            }
+          } else {
+            for (int p = 0; p < other.sizes[j]; p++) {
+              char low = other.arrays[j][p];
+              b[low >>> 6] |= 1L << low;
+            }
+          }
+
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            size += Long.bitCount (b[w]);
+          }
+
+          result.addChunk (this.keys[i], size, null, b);
+          result.cardinality += size;
+        } else {
+          char[] a1 = this.arrays[i];
+          char[] a2 = other.arrays[j];
+          int n1 = this.sizes[i];
+          int n2 = other.sizes[j];
+          char[] a = new char[n1 + n2];
+          int size = 0;
+          int p = 0;
+          int q = 0;
+
+          while ((p < n1) && (q < n2)) {
+            if (a1[p] < a2[q]) {
+              a[size++] = a1[p++];
+            } else if (a1[p] > a2[q]) {
+              a[size++] = a2[q++];
+            } else {
+              a[size++] = a1[p++];
+              q ++;
+            }
+          }
+
+          while (p < n1) {
+            a[size++] = a1[p++];
+          }
+
+          while (q < n2) {
+            a[size++] = a2[q++];
+          }
+
+          if (size > ARRAY_MAX) {
+            result.addChunk (this.keys[i], size, null, toBitmap (a, size));
+          } else {
+            result.addChunk (this.keys[i], size, a, null);
+          }
+
+          result.cardinality += size;
+        }
+
+        i ++;
+        j ++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Append a container of another set.  Containers aren't changed
+   *  after they are built, so it is shared.
+   */
+  private void addCopy (DocBitmap other, int c) {
+    this.addChunk (other.keys[c], other.sizes[c], other.arrays[c], other.bitmaps[c]);
+    this.cardinality += other.sizes[c];
+  }
+
+  /**
+   *  Get the docids in ascending order.
+   *  @return The docids.
+   */
+  public int[] toArray () {
+
+    int[] docids = new int[this.cardinality];
+    int n = 0;
+
+    for (int c = 0; c < this.numChunks; c++) {
+      int high = this.keys[c] << 16;
+
+      if (this.bitmaps[c] != null) {
+        long[] b = this.bitmaps[c];
+
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          long word = b[w];
+
+          while (word != 0) {
+            docids[n++] = high | (w << 6) | Long.numberOfTrailingZeros (word);
+            word &= word - 1;
+          }
+        }
+      } else {
+        char[] a = this.arrays[c];
+
+        for (int p = 0; p < this.sizes[c]; p++) {
+          docids[n++] = high | a[p];
+        }
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Convert a bitmap container to an array container.
+   */
+  private static char[] toArray (long[] bitmap, int size) {
+
+    char[] a = new char[size];
+    int n = 0;
+
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+      long word = bitmap[w];
+
+      while (word != 0) {
+        a[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros (word));
+        word &= word - 1;
+      }
+    }
+
+    return a;
+  }
+
+  /**
+   *  Convert an array container to a bitmap container.
+   */
+  private static long[] toBitmap (char[] array, int size) {
+
+    long[] b = new long[BITMAP_WORDS];
+
+    for (int p = 0; p < size; p++) {
+      char low = array[p];
+      b[low >>> 6] |= 1L << low;
+    }
+
+    return b;
+  }
+}
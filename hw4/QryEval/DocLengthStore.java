@@ -3,8 +3,12 @@
  */
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
+
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,20 +16,93 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Fields are identified by name or by a small integer ordinal
+ * (getFieldOrdinal).  Callers on the scoring hot path should look up
+ * the ordinal once and use it for every document.  By default lengths
+ * are read from Lucene's norms on each call.  The HEAP and OFFHEAP
+ * storage modes copy every field's lengths into an int array (or a
+ * direct buffer outside the Java heap, for very large collections)
+ * when the store is opened, so a lookup is a single array read.
+ * </p>
  */
 public class DocLengthStore  {
 
+  /**
+   * Where document lengths are read from.
+   */
+  public static enum Storage { LUCENE, HEAP, OFFHEAP };
+
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Storage storage;
+  private Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+  //  One of the following arrays holds the lengths, depending on the
+  //  storage mode.  Entries are indexed by field ordinal; they are null
+  //  for fields that don't have lengths.
+
+  private NumericDocValues[] norms;
+  private int[][] lengths;
+  private IntBuffer[] buffers;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, Storage.LUCENE);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param storage Where document lengths are read from.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, Storage storage) throws IOException {
     this.reader = reader;
+    this.storage = storage;
+
+    int numFields = MultiFields.getIndexedFields(reader).size();
+    int maxDoc = reader.maxDoc();
+
+    switch (storage) {
+      case LUCENE:  this.norms = new NumericDocValues[numFields];  break;
+      case HEAP:    this.lengths = new int[numFields][];           break;
+      case OFFHEAP: this.buffers = new IntBuffer[numFields];       break;
+    }
+
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      int ordinal = this.ordinals.size();
+      NumericDocValues values = MultiDocValues.getNormValues(reader, field);
+
+      this.ordinals.put(field, ordinal);
+
+      if (values == null) {		// The field doesn't store lengths
+        continue;
+      }
+
+      switch (storage) {
+        case LUCENE:
+          this.norms[ordinal] = values;
+          break;
+
+        case HEAP:
+          int[] a = new int[maxDoc];
+          for (int docid = 0; docid < maxDoc; docid++) {
+            a[docid] = (int) values.get(docid);
+          }
+          this.lengths[ordinal] = a;
+          break;
+
+        case OFFHEAP:
+          IntBuffer b = ByteBuffer.allocateDirect(4 * maxDoc)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+          for (int docid = 0; docid < maxDoc; docid++) {
+            b.put(docid, (int) values.get(docid));
+          }
+          this.buffers[ordinal] = b;
+          break;
+      }
     }
   }
 
@@ -39,6 +116,52 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return this.getDocLength(this.getFieldOrdinal(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   * Fields that aren't indexed, or that don't store lengths, have
+   * length 0.
+   *
+   * @param fieldOrdinal The field's ordinal (see getFieldOrdinal).
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   */
+  public long getDocLength(int fieldOrdinal, int docid) {
+
+    if (this.lengths != null) {
+      int[] a = (fieldOrdinal < 0) ? null : this.lengths[fieldOrdinal];
+      return (a == null) ? 0 : a[docid];
+    }
+
+    if (this.buffers != null) {
+      IntBuffer b = (fieldOrdinal < 0) ? null : this.buffers[fieldOrdinal];
+      return (b == null) ? 0 : b.get(docid);
+    }
+
+    NumericDocValues v = (fieldOrdinal < 0) ? null : this.norms[fieldOrdinal];
+    return (v == null) ? 0 : v.get(docid);
+  }
+
+  /**
+   * Returns the ordinal of a field, which is a faster way of
+   * identifying the field in calls to getDocLength.
+   *
+   * @param fieldname Name of field.
+   * @return The field's ordinal, or -1 if the field isn't indexed.
+   */
+  public int getFieldOrdinal(String fieldname) {
+    Integer ordinal = this.ordinals.get(fieldname);
+    return (ordinal == null) ? -1 : ordinal;
+  }
+
+  /**
+   * Returns where document lengths are read from.
+   *
+   * @return The storage mode.
+   */
+  public Storage getStorage() {
+    return this.storage;
   }
 }
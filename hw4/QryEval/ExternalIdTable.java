@@ -0,0 +1,361 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+/**
+ *  A table that translates internal document ids to external document
+ *  ids (e.g., clueweb09-enwp00-88-09710) and back, without loading
+ *  stored Lucene documents or running Lucene queries.
+ *  <p>
+ *  The table is columnar.  The UTF-8 bytes of every external id are
+ *  stored end to end, with an array of offsets indexed by internal
+ *  docid, and an array of the live internal docids sorted by external
+ *  id supports binary search in the other direction.  The table is
+ *  built once by reading the externalId field of every document, and
+ *  is saved in a sidecar file in the index directory.  Later runs
+ *  memory-map the sidecar instead of rebuilding the table.  The sidecar
+ *  records the index version, so a sidecar from an older version of
+ *  the index is rebuilt.  If the sidecar can't be written, the table is
+ *  kept on the heap.
+ *  </p>
+ *  <p>
+ *  Sidecar format:  magic, format version, index version, maxDoc,
+ *  number of sorted docids, number of id bytes, the offsets
+ *  (maxDoc + 1 ints), the sorted docids, and the id bytes.
+ *  </p>
+ */
+public class ExternalIdTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String SIDECAR_NAME = "externalIds.qryeval";
+
+  private static final String FIELD = "externalId";
+  private static final int MAGIC = 0x51455844;		// "QEXD"
+  private static final int FORMAT = 1;
+  private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4;
+
+  private int maxDoc;
+  private IntBuffer offsets;
+  private IntBuffer sortedDocids;
+  private ByteBuffer bytes;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the table of an index, memory-mapping its sidecar file if it
+   *  is current, otherwise building the table and saving the sidecar.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ExternalIdTable (IndexReader reader, String indexPath)
+    throws IOException {
+
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : -1;
+    File sidecar = new File (indexPath, SIDECAR_NAME);
+    ByteBuffer table = null;
+
+    if (version >= 0) {
+      table = ExternalIdTable.map (sidecar, version, reader.maxDoc ());
+    }
+
+    if (table == null) {
+      table = ExternalIdTable.build (reader, version);
+
+      if (version >= 0) {
+        ExternalIdTable.save (sidecar, table);
+      }
+    }
+
+    //  Slice the table into its columns.
+
+    this.maxDoc = table.getInt (16);
+    int numSorted = table.getInt (20);
+    int offsetsStart = HEADER_BYTES;
+    int sortedStart = offsetsStart + 4 * (this.maxDoc + 1);
+    int bytesStart = sortedStart + 4 * numSorted;
+
+    this.offsets = ExternalIdTable.slice (table, offsetsStart, sortedStart).asIntBuffer ();
+    this.sortedDocids = ExternalIdTable.slice (table, sortedStart, bytesStart).asIntBuffer ();
+    this.bytes = ExternalIdTable.slice (table, bytesStart, table.limit ());
+  }
+
+  /**
+   *  Build the table by reading the externalId field of every document.
+   *  @param reader The index.
+   *  @param version The index version, recorded in the header.
+   *  @return The table, in sidecar format.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static ByteBuffer build (IndexReader reader, long version)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    Set<String> fieldsToLoad = Collections.singleton (FIELD);
+    byte[][] ids = new byte[maxDoc][];
+    int[] offsets = new int[maxDoc + 1];
+    List<Integer> live = new ArrayList<Integer> ();
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = reader.document (docid, fieldsToLoad);
+      String eid = d.get (FIELD);
+
+      ids[docid] = (eid == null) ? new byte[0] : eid.getBytes (StandardCharsets.UTF_8);
+      offsets[docid + 1] = offsets[docid] + ids[docid].length;
+
+      if ((eid != null) &&
+          ((liveDocs == null) || liveDocs.get (docid))) {
+        live.add (docid);
+      }
+    }
+
+    //  Sort by external id, then by internal docid, so that the first
+    //  match of a duplicated id is the lowest docid.
+
+    final byte[][] sortIds = ids;
+
+    Collections.sort (live, new Comparator<Integer> () {
+      @Override
+      public int compare (Integer d1, Integer d2) {
+        int c = ExternalIdTable.compare (sortIds[d1], sortIds[d2]);
+        return (c != 0) ? c : Integer.compare (d1, d2);
+      }
+    });
+
+    //  Lay the columns out in sidecar format.
+
+    ByteBuffer table = ByteBuffer.allocate (
+      HEADER_BYTES + 4 * (maxDoc + 1) + 4 * live.size () + offsets[maxDoc]);
+
+    table.putInt (MAGIC).putInt (FORMAT).putLong (version);
+    table.putInt (maxDoc).putInt (live.size ()).putInt (offsets[maxDoc]);
+
+    for (int offset : offsets) {
+      table.putInt (offset);
+    }
+
+    for (int docid : live) {
+      table.putInt (docid);
+    }
+
+    for (byte[] id : ids) {
+      table.put (id);
+    }
+
+    table.flip ();
+    return table;
+  }
+
+  /**
+   *  Compare two UTF-8 byte strings as unsigned bytes, which is
+   *  the code point order of the strings.
+   */
+  private static int compare (byte[] b1, byte[] b2) {
+    int n = Math.min (b1.length, b2.length);
+
+    for (int i = 0; i < n; i++) {
+      int c = (b1[i] & 0xff) - (b2[i] & 0xff);
+
+      if (c != 0) {
+        return c;
+      }
+    }
+
+    return b1.length - b2.length;
+  }
+
+  /**
+   *  Compare the external id of an internal docid to a UTF-8 byte
+   *  string, in the order used by compare (byte[], byte[]).
+   */
+  private int compare (int docid, byte[] key) {
+    int start = this.offsets.get (docid);
+    int length = this.offsets.get (docid + 1) - start;
+    int n = Math.min (length, key.length);
+
+    for (int i = 0; i < n; i++) {
+      int c = (this.bytes.get (start + i) & 0xff) - (key[i] & 0xff);
+
+      if (c != 0) {
+        return c;
+      }
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  Get the external document id of an internal document id.
+   *  @param docid The internal document id.
+   *  @return The external document id, or null if the document
+   *  doesn't have one.
+   */
+  public String getExternalDocid (int docid) {
+    int start = this.offsets.get (docid);
+    int length = this.offsets.get (docid + 1) - start;
+
+    if (length == 0) {
+      return null;
+    }
+
+    //  Read through a duplicate, which has its own position, so that
+    //  threads can look up ids at the same time.
+
+    ByteBuffer dup = this.bytes.duplicate ();
+    byte[] b = new byte[length];
+    dup.position (start);
+    dup.get (b);
+    return new String (b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the external document ids of several internal document ids.
+   *  @param docids The internal document ids.
+   *  @return The external document ids, in the same order.
+   */
+  public String[] getExternalDocids (int[] docids) {
+    String[] eids = new String[docids.length];
+
+    for (int i = 0; i < docids.length; i++) {
+      eids[i] = this.getExternalDocid (docids[i]);
+    }
+
+    return eids;
+  }
+
+  /**
+   *  Get the internal document id of an external document id.
+   *  @param externalId The external document id.
+   *  @return The internal document id, or -1 if no live document has
+   *  the external id.
+   */
+  public int getInternalDocid (String externalId) {
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = this.sortedDocids.limit ();
+
+    //  Find the first entry that is not less than the key.
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.compare (this.sortedDocids.get (mid), key) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    if ((lo < this.sortedDocids.limit ()) &&
+        (this.compare (this.sortedDocids.get (lo), key) == 0)) {
+      return this.sortedDocids.get (lo);
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Get the internal document ids of several external document ids.
+   *  @param externalIds The external document ids.
+   *  @return The internal document ids, in the same order.  Unknown
+   *  external ids have internal id -1.
+   */
+  public int[] getInternalDocids (String[] externalIds) {
+    int[] docids = new int[externalIds.length];
+
+    for (int i = 0; i < externalIds.length; i++) {
+      docids[i] = this.getInternalDocid (externalIds[i]);
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Memory-map a sidecar file if it exists and matches the index.
+   *  @return The mapped table, or null if the sidecar can't be used.
+   */
+  private static ByteBuffer map (File sidecar, long version, int maxDoc) {
+
+    if (! sidecar.isFile ()) {
+      return null;
+    }
+
+    try (RandomAccessFile f = new RandomAccessFile (sidecar, "r");
+         FileChannel channel = f.getChannel ()) {
+
+      if (channel.size () < HEADER_BYTES) {
+        return null;
+      }
+
+      ByteBuffer table = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((table.getInt (0) != MAGIC) ||
+          (table.getInt (4) != FORMAT) ||
+          (table.getLong (8) != version) ||
+          (table.getInt (16) != maxDoc) ||
+          (channel.size () != HEADER_BYTES + 4L * (maxDoc + 1) +
+                              4L * table.getInt (20) + table.getInt (24))) {
+        return null;
+      }
+
+      return table;
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   *  Save a table as a sidecar file.  The table is written to a
+   *  temporary file that is renamed, so readers never see a partial
+   *  sidecar.  Failure (e.g., a read-only index directory) is ignored.
+   */
+  private static void save (File sidecar, ByteBuffer table) {
+
+    File tmp = new File (sidecar.getPath () + ".tmp");
+
+    try (FileOutputStream out = new FileOutputStream (tmp)) {
+      out.getChannel ().write (table.duplicate ());
+    } catch (IOException ex) {
+      tmp.delete ();
+      return;
+    }
+
+    if (! tmp.renameTo (sidecar)) {
+      tmp.delete ();
+    }
+  }
+
+  /**
+   *  Get a view of part of a table.
+   */
+  private static ByteBuffer slice (ByteBuffer table, int start, int end) {
+    ByteBuffer b = table.duplicate ();
+    b.limit (end).position (start);
+    return b.slice ();
+  }
+
+  /**
+   *  Get the number of documents in the table, including deleted
+   *  documents.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.maxDoc;
+  }
+}
@@ -20,6 +20,15 @@ import org.apache.lucene.util.BytesRef;
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
  *  </p>
+ *  <p>
+ *  Several threads may evaluate queries at the same time.  Lucene
+ *  readers, document length stores, corpus statistics, and the
+ *  sidecar tables are only read after they are built, and the tables
+ *  that are built lazily are published safely, so the read methods
+ *  don't lock.  Opening an index or changing the current index is
+ *  synchronized, but it must not happen while other threads are
+ *  evaluating queries.
+ *  </p>
  */
 public class Idx {
 
@@ -28,14 +37,56 @@ public class Idx {
   /**
    *  The Lucene index that is considered the current index.
    */
-  public static IndexReader INDEXREADER=null;
+  public static volatile IndexReader INDEXREADER=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  private static volatile DocLengthStore DOCLENGTHSTORE=null;
+  private static volatile CollectionStats COLLECTIONSTATS=null;
+  private static volatile ExternalIdTable EXTERNALIDTABLE=null;
+  private static volatile String INDEXPATH=null;
+  private static volatile BlockMaxIndex BLOCKMAXINDEX=null;
+  private static volatile boolean BLOCKMAXINDEXOPENED=false;
+  private static volatile ImpactIndex IMPACTINDEX=null;
+  private static volatile boolean IMPACTINDEXOPENED=false;
+
+  /**
+   *  Where the DocLengthStores of indexes opened later read document
+   *  lengths from.
+   */
+  private static DocLengthStore.Storage DOCLENGTHSTORAGE =
+    DocLengthStore.Storage.LUCENE;
 
   private static HashMap<String,IndexReader> openIndexReaders =
     new HashMap<String,IndexReader> ();
   private static HashMap<String,DocLengthStore> openDocLengthStores =
     new HashMap<String,DocLengthStore> ();
+  private static HashMap<String,CollectionStats> openCollectionStats =
+    new HashMap<String,CollectionStats> ();
+  private static HashMap<String,ExternalIdTable> openExternalIdTables =
+    new HashMap<String,ExternalIdTable> ();
+
+  /**
+   *  Evaluated inverted lists from the current index.  The cache is
+   *  disabled (a budget of 0 bytes) until setInvListCacheSize is called.
+   */
+  private static InvListCache INVLISTCACHE = new InvListCache (0);
+
+  /**
+   *  Evaluated proximity operator lists that persist across runs, or
+   *  null if there is no proximity cache (see setProximityListCache).
+   */
+  private static volatile ProximityListCache PROXIMITYLISTCACHE = null;
+
+  /**
+   *  Inverted lists that the queries of the current batch share, or
+   *  null if lists aren't shared across queries.
+   */
+  private static volatile BatchInvLists BATCHINVLISTS = null;
+
+  /**
+   *  The path and version of the current index, which identify its
+   *  lists in the proximity cache.
+   */
+  private static volatile String INDEXID=null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -53,6 +104,55 @@ public class Idx {
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the inverted lists that the queries of the current batch
+   *  share.
+   *  @return The shared lists, or null if lists aren't shared.
+   */
+  public static BatchInvLists getBatchInvLists () {
+    return Idx.BATCHINVLISTS;
+  }
+
+  /**
+   *  Get the block-max metadata of the current index, opening its
+   *  sidecar file (see BlockMaxIndex) the first time it is used.
+   *  @return the block-max metadata, or null if the index doesn't
+   *  have a current sidecar
+   */
+  public static BlockMaxIndex getBlockMaxIndex () {
+
+    if (! Idx.BLOCKMAXINDEXOPENED) {
+      synchronized (Idx.class) {
+        if (! Idx.BLOCKMAXINDEXOPENED) {
+          Idx.BLOCKMAXINDEX = BlockMaxIndex.open (Idx.INDEXREADER, Idx.INDEXPATH);
+          Idx.BLOCKMAXINDEXOPENED = true;
+        }
+      }
+    }
+
+    return Idx.BLOCKMAXINDEX;
+  }
+
+  /**
+   *  Get the impact-ordered postings of the current index, opening its
+   *  sidecar file (see ImpactIndex) the first time it is used.
+   *  @return the impact-ordered postings, or null if the index doesn't
+   *  have a current sidecar
+   */
+  public static ImpactIndex getImpactIndex () {
+
+    if (! Idx.IMPACTINDEXOPENED) {
+      synchronized (Idx.class) {
+        if (! Idx.IMPACTINDEXOPENED) {
+          Idx.IMPACTINDEX = ImpactIndex.open (Idx.INDEXREADER, Idx.INDEXPATH);
+          Idx.IMPACTINDEXOPENED = true;
+        }
+      }
+    }
+
+    return Idx.IMPACTINDEX;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -61,7 +161,29 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return (int) Idx.COLLECTIONSTATS.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field (e.g., the
+   *  number of documents that have 'apple' in the title field).
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term)
+    throws IOException {
+    return INDEXREADER.docFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
+  /**
+   *  Get the corpus statistics snapshot of the current index.  It is
+   *  faster to read statistics from the snapshot than from Lucene.
+   *  @return the corpus statistics of the current index
+   */
+  public static CollectionStats getCollectionStats () {
+    return Idx.COLLECTIONSTATS;
   }
 
   /**
@@ -72,9 +194,63 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
-    return eid;
+    return Idx.getExternalIdTable ().getExternalDocid (iid);
+  }
+
+  /**
+   *  Get the external document ids for several documents specified by
+   *  internal document ids.
+   *  @param iids The internal document ids of the documents.
+   *  @return the external document ids, in the same order
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String[] getExternalDocids (int[] iids) throws IOException {
+    return Idx.getExternalIdTable ().getExternalDocids (iids);
+  }
+
+  /**
+   *  Get the external id table of the current index, building it (or
+   *  reading it from its sidecar file) the first time it is used.
+   *  @return the external id table
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static ExternalIdTable getExternalIdTable ()
+    throws IOException {
+
+    //  Every ScoreList tie-break comes here, so only the first call
+    //  locks.
+
+    ExternalIdTable table = Idx.EXTERNALIDTABLE;
+
+    if (table == null) {
+      synchronized (Idx.class) {
+        table = Idx.EXTERNALIDTABLE;
+
+        if (table == null) {
+          table = new ExternalIdTable (Idx.INDEXREADER, Idx.INDEXPATH);
+          openExternalIdTables.put (Idx.INDEXPATH, table);
+          Idx.EXTERNALIDTABLE = table;
+        }
+      }
+    }
+
+    return table;
+  }
+
+  /**
+   *  Get the cache of evaluated inverted lists for the current index.
+   *  @return The inverted list cache.
+   */
+  public static InvListCache getInvListCache () {
+    return Idx.INVLISTCACHE;
+  }
+
+  /**
+   *  Get a string that identifies the current index and its version.
+   *  @return The canonical path and version of the current index.
+   */
+  public static String getIndexId () {
+    return Idx.INDEXID;
   }
 
   /**
@@ -89,6 +265,28 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  This is faster than looking the field up by name.
+   *  @param fieldOrdinal The field's ordinal (see getFieldOrdinal).
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   */
+  public static int getFieldLength (int fieldOrdinal, int docid) {
+    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldOrdinal, docid);
+  }
+
+  /**
+   *  Get the ordinal of a field in the current index's document
+   *  length store.  The ordinal is valid until the current index
+   *  changes.
+   *  @param fieldName The field name.
+   *  @return the field's ordinal, or -1 if the field isn't indexed.
+   */
+  public static int getFieldOrdinal (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getFieldOrdinal (fieldName);
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -100,27 +298,45 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
-
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
+    int iid = Idx.getExternalIdTable ().getInternalDocid (externalId);
 
-    if (hits.length < 1) {
+    if (iid < 0) {
       throw new Exception("External id not found.");
     } else {
-      return hits[0].doc;
+      return iid;
     }
   }
 
+  /**
+   * Get the internal document ids for several documents specified by
+   * their external ids.  This is faster than calling getInternalDocid
+   * for each document, and it doesn't throw an exception for unknown
+   * external ids.
+   * @param externalIds The external docids in the Lucene index.
+   * @return the internal docids, in the same order.  Unknown external
+   * ids have internal docid -1.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public static int[] getInternalDocids(String[] externalIds)
+    throws IOException {
+    return Idx.getExternalIdTable ().getInternalDocids (externalIds);
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.COLLECTIONSTATS.getNumDocs ();
+  }
+
+  /**
+   *  Get the persistent cache of proximity operator lists.
+   *  @return The proximity list cache, or null if there is none.
+   */
+  public static ProximityListCache getProximityListCache () {
+    return Idx.PROXIMITYLISTCACHE;
   }
 
   /**
@@ -133,7 +349,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.COLLECTIONSTATS.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -152,17 +368,37 @@ public class Idx {
   }
 
 
+  /**
+   *  Get a string that identifies an index and its version.
+   */
+  private static String indexId (String indexPath, IndexReader reader) {
+
+    String path;
+
+    try {
+      path = new File (indexPath).getCanonicalPath ();
+    } catch (IOException ex) {
+      path = new File (indexPath).getAbsolutePath ();
+    }
+
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : -1;
+
+    return (path + "@" + version);
+  }
+
   /**
    *  Open a Lucene index and the associated DocLengthStore.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
-  public static void open (String indexPath)
+  public static synchronized void open (String indexPath)
     throws IllegalArgumentException, IOException {
 
     IndexReader indexReader;
     DocLengthStore docLengthStore;
+    CollectionStats collectionStats;
 
     //  Open the Lucene index
 
@@ -176,22 +412,35 @@ public class Idx {
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
 
-    docLengthStore = new DocLengthStore (indexReader);
+    docLengthStore = new DocLengthStore (indexReader, Idx.DOCLENGTHSTORAGE);
   
     if (docLengthStore == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
 
+    //  Corpus statistics don't change while the index is open, so
+    //  they are read once.
+
+    collectionStats = new CollectionStats (indexReader);
+
     //  Keep track of the open indexes.
 
     openIndexReaders.put (indexPath, indexReader);
     openDocLengthStores.put (indexPath, docLengthStore);
+    openCollectionStats.put (indexPath, collectionStats);
 
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
       Idx.DOCLENGTHSTORE = docLengthStore;
+      Idx.COLLECTIONSTATS = collectionStats;
+      Idx.EXTERNALIDTABLE = null;
+      Idx.BLOCKMAXINDEXOPENED = false;
+      Idx.IMPACTINDEXOPENED = false;
+      Idx.INDEXPATH = indexPath;
+      Idx.INDEXID = indexId (indexPath, indexReader);
+      Idx.INVLISTCACHE.clear ();
     }
   }
 
@@ -200,7 +449,7 @@ public class Idx {
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
     IndexReader indexReader = openIndexReaders.get (indexPath);
@@ -211,7 +460,61 @@ public class Idx {
         "An index must be open before it can be the current index");
     }
 
+    if (Idx.INDEXREADER != indexReader) {
+      Idx.INVLISTCACHE.clear ();
+    }
+
     Idx.INDEXREADER = indexReader;
     Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.COLLECTIONSTATS = openCollectionStats.get (indexPath);
+    Idx.EXTERNALIDTABLE = openExternalIdTables.get (indexPath);
+
+    if (! indexPath.equals (Idx.INDEXPATH)) {
+      Idx.BLOCKMAXINDEXOPENED = false;
+      Idx.IMPACTINDEXOPENED = false;
+    }
+
+    Idx.INDEXPATH = indexPath;
+    Idx.INDEXID = indexId (indexPath, indexReader);
+  }
+
+  /**
+   *  Share inverted lists among the queries of a batch.
+   *  @param lists The shared lists of the batch, or null when the
+   *  batch is done.
+   */
+  public static void setBatchInvLists (BatchInvLists lists) {
+    Idx.BATCHINVLISTS = lists;
+  }
+
+  /**
+   *  Choose where the document length stores of indexes that are
+   *  opened later read document lengths from.  HEAP and OFFHEAP
+   *  preload every field's lengths when the index is opened.
+   *  @param storage The storage mode.
+   */
+  public static void setDocLengthStorage (DocLengthStore.Storage storage) {
+    Idx.DOCLENGTHSTORAGE = storage;
+  }
+
+  /**
+   *  Set the budget of the cache of evaluated inverted lists.
+   *  @param maxBytes The maximum number of bytes of inverted lists to
+   *  cache.  0 disables the cache.
+   */
+  public static void setInvListCacheSize (long maxBytes) {
+    Idx.INVLISTCACHE.setMaxBytes (maxBytes);
+  }
+
+  /**
+   *  Use a directory as a persistent cache of evaluated proximity
+   *  operator lists.
+   *  @param dir The cache directory.  It is created if necessary.
+   *  @param maxBytes The maximum number of bytes of cached lists.
+   *  @throws IOException The directory can't be created.
+   */
+  public static void setProximityListCache (File dir, long maxBytes)
+    throws IOException {
+    Idx.PROXIMITYLISTCACHE = new ProximityListCache (dir, maxBytes);
   }
 }
@@ -0,0 +1,435 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.*;
+
+/**
+ *  Impact-ordered postings for the terms of an index, stored in a
+ *  sidecar file in the index directory, for score-at-a-time evaluation
+ *  (see SaatEvaluator).  Each posting's BM25 tf weight (the BM25 score
+ *  without the idf and query weight factors) is quantized to an impact
+ *  level from 1 to 2^bits - 1; tf weights are less than k_1 + 1, which
+ *  the highest level represents.  Each term's postings are grouped
+ *  into segments of equal impact, in descending order of impact, and
+ *  the docids of a segment are in ascending order.  The tf weights
+ *  depend on k_1 and b, which are recorded in the header; the
+ *  postings are only used when the parameters match.
+ *  <p>
+ *  Run the class to build the sidecar, for example:
+ *  </p>
+ *  <pre>
+ *    java ImpactIndex -index INDEX_PATH -bm25 1.2 0.75 -bits 8
+ *  </pre>
+ *  <p>
+ *  QryEval memory-maps the sidecar (see Idx.getImpactIndex).  The
+ *  sidecar records the index version, so a sidecar for another version
+ *  of the index is ignored.
+ *  </p>
+ *  <p>
+ *  Sidecar format:  magic, format version, index version, bits, k_1,
+ *  b, number of terms, number of segments, number of postings, number
+ *  of key bytes, key offsets (numTerms + 1 ints), first segment of
+ *  each term (numTerms + 1 ints), segment impact levels, first posting
+ *  of each segment (numSegments + 1 ints), docids, and key bytes.
+ *  The header and keys are shared with the other sidecars (see
+ *  SidecarFile).
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String SIDECAR_NAME = "impact.qryeval";
+
+  /**
+   *  The default number of bits of an impact level.
+   */
+  public static final int DEFAULT_BITS = 8;
+
+  private static final int MAGIC = 0x5145494d;		// "QEIM"
+  private static final int FORMAT = 1;
+  private static final int HEADER_BYTES =
+    4 + 4 + 8 + 4 + 8 + 8 + 4 + 4 + 4 + 4;
+
+  static String usage =
+    "Usage:  java ImpactIndex -index INDEX_PATH [options]\n\n" +
+    "where options include\n" +
+    "    -bm25 K_1 B\t\tBM25 parameters (default 1.2 0.75)\n" +
+    "    -bits N\t\tbits per impact level, 1-16 (default " +
+    DEFAULT_BITS + ")\n";
+
+  private int bits;
+  private double k_1, b;
+  private int numTerms;
+  private IntBuffer keyOffsets;
+  private IntBuffer segmentStarts;
+  private IntBuffer levels;
+  private IntBuffer postingStarts;
+  private IntBuffer docids;
+  private ByteBuffer keys;
+
+  /**
+   *  The impact-ordered postings of one inverted list.
+   */
+  public static class Segments {
+
+    /**
+     *  The score contribution of each segment's postings, in
+     *  descending order.
+     */
+    public final double[] impacts;
+
+    /**
+     *  The first posting of each segment, and the end of the last
+     *  segment.
+     */
+    private final int[] starts;
+
+    private final IntBuffer docids;
+
+    /**
+     *  @param impacts The score contribution of each segment.
+     *  @param starts The first posting of each segment, and the end of
+     *  the last segment.
+     *  @param docids The docids of the postings.
+     */
+    Segments (double[] impacts, int[] starts, IntBuffer docids) {
+      this.impacts = impacts;
+      this.starts = starts;
+      this.docids = docids;
+    }
+
+    /**
+     *  Get a docid.
+     *  @param s The segment.
+     *  @param i The posting number within the segment.
+     *  @return The docid.
+     */
+    public int getDocid (int s, int i) {
+      return this.docids.get (this.starts[s] + i);
+    }
+
+    /**
+     *  Get the number of segments.
+     *  @return The number of segments.
+     */
+    public int getNumSegments () {
+      return this.impacts.length;
+    }
+
+    /**
+     *  Get the number of postings in all of the segments, which is the
+     *  df of the inverted list.
+     *  @return The number of postings.
+     */
+    public int getNumPostings () {
+      return this.starts[this.starts.length - 1] - this.starts[0];
+    }
+
+    /**
+     *  Get the number of postings in a segment.
+     *  @param s The segment.
+     *  @return The number of postings.
+     */
+    public int getSize (int s) {
+      return this.starts[s + 1] - this.starts[s];
+    }
+
+    /**
+     *  Get the same postings with every impact multiplied by a factor,
+     *  e.g., the BM25 idf and query term weight.
+     *  @param factor The factor.
+     *  @return The scaled segments.
+     */
+    public Segments scale (double factor) {
+      double[] scaled = new double[this.impacts.length];
+
+      for (int s = 0; s < scaled.length; s++) {
+        scaled[s] = this.impacts[s] * factor;
+      }
+
+      return new Segments (scaled, this.starts, this.docids);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  private ImpactIndex (ByteBuffer table) {
+    this.bits = table.getInt (16);
+    this.k_1 = table.getDouble (20);
+    this.b = table.getDouble (28);
+    this.numTerms = table.getInt (36);
+
+    int numSegments = table.getInt (40);
+    int numPostings = table.getInt (44);
+    int start = HEADER_BYTES;
+
+    this.keyOffsets = SidecarFile.slice (table, start, 4 * (this.numTerms + 1)).asIntBuffer ();
+    start += 4 * (this.numTerms + 1);
+    this.segmentStarts = SidecarFile.slice (table, start, 4 * (this.numTerms + 1)).asIntBuffer ();
+    start += 4 * (this.numTerms + 1);
+    this.levels = SidecarFile.slice (table, start, 4 * numSegments).asIntBuffer ();
+    start += 4 * numSegments;
+    this.postingStarts = SidecarFile.slice (table, start, 4 * (numSegments + 1)).asIntBuffer ();
+    start += 4 * (numSegments + 1);
+    this.docids = SidecarFile.slice (table, start, 4 * numPostings).asIntBuffer ();
+    start += 4 * numPostings;
+    this.keys = SidecarFile.slice (table, start, table.limit () - start);
+  }
+
+  /**
+   *  Open the impact sidecar of an index.
+   *  @param reader The index.
+   *  @param indexPath The directory that contains the index.
+   *  @return The impact-ordered postings, or null if the index doesn't
+   *  have a current sidecar.
+   */
+  public static ImpactIndex open (IndexReader reader, String indexPath) {
+
+    ByteBuffer table =
+      SidecarFile.map (reader, new File (indexPath, SIDECAR_NAME),
+                       MAGIC, FORMAT, HEADER_BYTES);
+
+    if ((table == null) ||
+        (table.limit () != HEADER_BYTES +
+                            8L * (table.getInt (36) + 1) +
+                            8L * table.getInt (40) + 4 +
+                            4L * table.getInt (44) +
+                            table.getInt (48))) {
+      return null;
+    }
+
+    return new ImpactIndex (table);
+  }
+
+  /**
+   *  Get the BM25 tf weight that an impact level represents.
+   *  @param level The impact level.
+   *  @return The tf weight.
+   */
+  public double getImpactWeight (int level) {
+    return level * (this.k_1 + 1) / ((1 << this.bits) - 1);
+  }
+
+  /**
+   *  Get the impact-ordered postings of a term.  Impacts are BM25 tf
+   *  weights.
+   *  @param field The field.
+   *  @param term The term.
+   *  @return The term's segments, or null if the term isn't in the
+   *  index.
+   */
+  public Segments getSegments (String field, String term) {
+
+    int t = SidecarFile.findKey (this.keyOffsets, this.keys, this.numTerms,
+                                 field, term);
+
+    if (t < 0) {
+      return null;
+    }
+
+    int first = this.segmentStarts.get (t);
+    int n = this.segmentStarts.get (t + 1) - first;
+    double[] impacts = new double[n];
+    int[] starts = new int[n + 1];
+
+    for (int s = 0; s < n; s++) {
+      impacts[s] = this.getImpactWeight (this.levels.get (first + s));
+      starts[s] = this.postingStarts.get (first + s);
+    }
+
+    starts[n] = this.postingStarts.get (first + n);
+    return new Segments (impacts, starts, this.docids);
+  }
+
+  /**
+   *  Indicates whether the impacts were computed with the specified
+   *  BM25 parameters.
+   *  @param k_1 The k_1 parameter.
+   *  @param b The b parameter.
+   *  @return True if the parameters match, otherwise false.
+   */
+  public boolean hasBM25 (double k_1, double b) {
+    return (this.k_1 == k_1) && (this.b == b);
+  }
+
+  /**
+   *  Build the impact sidecar of an index.
+   *  @param indexPath The directory that contains the index.
+   *  @param bits The number of bits of an impact level.
+   *  @param k_1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @throws IOException Error accessing the index or writing the sidecar.
+   */
+  public static void build (String indexPath, int bits, double k_1, double b)
+    throws IOException {
+
+    Idx.open (indexPath);
+
+    IndexReader reader = Idx.INDEXREADER;
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    int maxLevel = (1 << bits) - 1;
+    SidecarFile.Keys keys = new SidecarFile.Keys ();
+    SidecarFile.IntArray segmentStarts = new SidecarFile.IntArray ();
+    SidecarFile.IntArray levels = new SidecarFile.IntArray ();
+    SidecarFile.IntArray postingStarts = new SidecarFile.IntArray ();
+    SidecarFile.IntArray docids = new SidecarFile.IntArray ();
+    SidecarFile.IntArray termDocids = new SidecarFile.IntArray ();
+    SidecarFile.IntArray termLevels = new SidecarFile.IntArray ();
+    int[] counts = new int[maxLevel + 1];
+
+    segmentStarts.add (0);
+
+    //  Fields are visited in name order and Lucene enumerates terms
+    //  in unsigned byte order, so keys are written in sorted order.
+
+    for (String field : new TreeSet<String> (MultiFields.getIndexedFields (reader))) {
+
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if ((terms == null) || (! terms.hasPositions ())) {
+        continue;
+      }
+
+      int ordinal = Idx.getFieldOrdinal (field);
+      double avgLength = Idx.getCollectionStats ().getAvgFieldLength (field);
+      TermsEnum te = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = te.next ()) != null) {
+
+        docs = te.docs (liveDocs, docs, DocsEnum.FLAG_FREQS);
+        termDocids.clear ();
+        termLevels.clear ();
+        Arrays.fill (counts, 0);
+
+        while (docs.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          double tf = docs.freq ();
+          double length = Idx.getFieldLength (ordinal, docs.docID ());
+          double weight =
+            tf * (k_1 + 1) / (tf + k_1 * ((1 - b) + b * length / avgLength));
+          int level = (int) Math.round (weight / (k_1 + 1) * maxLevel);
+
+          level = Math.max (1, Math.min (maxLevel, level));
+          termDocids.add (docs.docID ());
+          termLevels.add (level);
+          counts[level] ++;
+        }
+
+        if (termDocids.size () == 0) {
+          continue;
+        }
+
+        //  Write one segment per impact level, highest first.  A
+        //  counting sort keeps the postings of a level in docid order.
+
+        int n = termDocids.size ();
+        int start = docids.size ();
+
+        for (int level = maxLevel; level > 0; level--) {
+          if (counts[level] == 0) {
+            continue;
+          }
+
+          levels.add (level);
+          postingStarts.add (start);
+
+          int size = counts[level];
+          counts[level] = start;
+          start += size;
+        }
+
+        docids.setSize (start);
+
+        for (int i = 0; i < n; i++) {
+          docids.set (counts[termLevels.get (i)]++, termDocids.get (i));
+        }
+
+        keys.add (field, term);
+        segmentStarts.add (levels.size ());
+      }
+    }
+
+    postingStarts.add (docids.size ());
+
+    //  Write the sidecar to a temporary file and rename it.
+
+    int numTerms = keys.getNumTerms ();
+    File sidecar = new File (indexPath, SIDECAR_NAME);
+    File tmp = new File (sidecar.getPath () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (tmp)))) {
+
+      SidecarFile.writeHeader (out, reader, MAGIC, FORMAT);
+      out.writeInt (bits);
+      out.writeDouble (k_1);
+      out.writeDouble (b);
+      out.writeInt (numTerms);
+      out.writeInt (levels.size ());
+      out.writeInt (docids.size ());
+      out.writeInt (keys.getNumBytes ());
+      keys.writeOffsets (out);
+      segmentStarts.write (out);
+      levels.write (out);
+      postingStarts.write (out);
+      docids.write (out);
+      keys.writeBytes (out);
+    }
+
+    SidecarFile.rename (tmp, sidecar);
+
+    System.out.println ("Wrote " + sidecar + ":  " + numTerms + " terms, " +
+                        levels.size () + " segments, " +
+                        docids.size () + " postings");
+  }
+
+  /**
+   *  Build the impact sidecar of an index.  Run it to see a simple
+   *  usage message.
+   *  @param args The command line arguments.
+   *  @throws IOException Error accessing the index or writing the sidecar.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    int bits = DEFAULT_BITS;
+    double k_1 = 1.2, b = 0.75;
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("-index".equals (args[i])) {
+          indexPath = args[++i];
+        } else if ("-bm25".equals (args[i])) {
+          k_1 = Double.parseDouble (args[++i]);
+          b = Double.parseDouble (args[++i]);
+        } else if ("-bits".equals (args[i])) {
+          bits = Integer.parseInt (args[++i]);
+        } else {
+          indexPath = null;
+          break;
+        }
+      }
+    } catch (RuntimeException ex) {
+      indexPath = null;
+    }
+
+    if ((indexPath == null) || (bits < 1) || (bits > 16)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    build (indexPath, bits, k_1, b);
+  }
+}
@@ -0,0 +1,276 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates an Indri #AND or #WAND query with score-bounded early
+ *  termination, finding the same top-k results as scoring every
+ *  document that matches any argument.
+ *  <p>
+ *  The score of a document is a product of argument scores raised to
+ *  the argument weights, so bounds are added in log space.  An
+ *  argument that doesn't match a document contributes its default
+ *  score, which is at most QrySopScore.getMaxDefaultScore.  An
+ *  argument that matches contributes at most QrySopScore.getMaxScore.
+ *  The bound of a document is the sum of the largest default
+ *  contributions plus the <i>gains</i> of the arguments that match it.
+ *  </p>
+ *  <p>
+ *  As in MaxScoreEvaluator, the arguments are sorted by gain, and the
+ *  arguments with the smallest gains that can't lift a document to
+ *  the threshold of the top-k list are non-essential.  Candidates
+ *  come from the essential arguments.  The non-essential arguments
+ *  are checked in decreasing order of gain, and a candidate is dropped
+ *  as soon as its bound falls below the threshold.  The score of a
+ *  candidate that isn't dropped is computed in argument order, exactly
+ *  as QrySopAnd and QrySopWAnd do (in log space if the model does),
+ *  so scores are identical to exhaustive evaluation.
+ *  </p>
+ */
+public class IndriAndEvaluator {
+
+  /**
+   *  The amount by which a log bound must be below the log threshold
+   *  before a document is dropped.  It is a relative difference
+   *  between scores, and covers the rounding of logs and powers.
+   */
+  private static final double LOG_SLACK = 1e-9;
+
+  /**
+   *  Indicates whether a query can be evaluated with score bounds.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is an Indri #AND or #WAND of SCORE operators
+   *  with non-negative weights.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! (((q instanceof QrySopAnd) || (q instanceof QrySopWAnd)) &&
+           (r instanceof RetrievalModelIndri))) {
+      return false;
+    }
+
+    //  The bounds assume that scores grow with tf and shrink with the
+    //  field length.
+
+    RetrievalModelIndri indri = (RetrievalModelIndri) r;
+
+    if ((indri.getLambda () < 0.0) || (indri.getLambda () > 1.0) ||
+        (indri.getMu () < 0.0)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    if (q instanceof QrySopWAnd) {
+      for (double weight : ((QrySopWAnd) q).weights) {
+        if (weight < 0.0) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query, adding the top documents to a
+   *  bounded score list.
+   *  @param q The query.  canEvaluate must be true for it.
+   *  @param r The retrieval model.
+   *  @param results A bounded score list.
+   *  @return The number of documents that were scored completely.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int evaluate (Qry q, RetrievalModel r, ScoreList results)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] scorers = new QrySopScore[n];
+    QryIop[] iterators = new QryIop[n];
+    double[] exponents = new double[n];
+    final double[] gains = new double[n];
+    double baseBound = 0.0;
+    boolean prune = true;
+    boolean logSpace = ((RetrievalModelIndri) r).getLogSpace ();
+
+    for (int i = 0; i < n; i++) {
+      scorers[i] = (QrySopScore) q.args.get (i);
+      iterators[i] = (QryIop) scorers[i].args.get (0);
+
+      if (q instanceof QrySopWAnd) {
+        QrySopWAnd wand = (QrySopWAnd) q;
+        exponents[i] = wand.weights.get (i) / wand.weightSum;
+      } else {
+        exponents[i] = 1.0 / n;
+      }
+
+      //  An argument with weight 0 doesn't change scores.  A default
+      //  score of 0 makes every document that misses the argument
+      //  score 0, which logs can't bound, so the query isn't pruned.
+
+      if (exponents[i] == 0.0) {
+        continue;
+      }
+
+      double maxDefault = scorers[i].getMaxDefaultScore (r);
+      double maxMatch = Math.max (maxDefault, scorers[i].getMaxScore (r));
+
+      if (! (maxDefault > 0.0)) {
+        prune = false;
+        continue;
+      }
+
+      baseBound += exponents[i] * Math.log (maxDefault);
+      gains[i] = exponents[i] * (Math.log (maxMatch) - Math.log (maxDefault));
+    }
+
+    //  Sort the arguments by gain.  cumBounds[j] is the bound of a
+    //  document that matches only the arguments order[0..j].
+
+    Integer[] sorted = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+
+    Arrays.sort (sorted, new Comparator<Integer> () {
+      @Override
+      public int compare (Integer i1, Integer i2) {
+        return Double.compare (gains[i1], gains[i2]);
+      }
+    });
+
+    int[] order = new int[n];
+    double[] cumBounds = new double[n];
+
+    for (int j = 0; j < n; j++) {
+      order[j] = sorted[j];
+      cumBounds[j] = ((j > 0) ? cumBounds[j - 1] : baseBound) + gains[order[j]];
+    }
+
+    double logThreshold = Double.NEGATIVE_INFINITY;
+    int firstEssential = 0;
+    double[] argScores = new double[n];
+    boolean[] matched = new boolean[n];
+    int scored = 0;
+
+    while (true) {
+
+      while ((firstEssential < n) &&
+             canSkip (cumBounds[firstEssential], logThreshold)) {
+        firstEssential ++;
+      }
+
+      //  The next candidate is the smallest docid of the essential
+      //  arguments.
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int j = firstEssential; j < n; j++) {
+        QryIop q_j = iterators[order[j]];
+
+        if (q_j.docIteratorHasMatch (r)) {
+          docid = Math.min (docid, q_j.docIteratorGetMatch ());
+        }
+      }
+
+      if (docid == Integer.MAX_VALUE) {
+        break;
+      }
+
+      //  The bound of the candidate starts with the largest default
+      //  contributions and the gains of the essential arguments it
+      //  matches.
+
+      double bound = baseBound;
+
+      for (int j = firstEssential; j < n; j++) {
+        int i = order[j];
+
+        if (iterators[i].docIteratorHasMatch (r) &&
+            (iterators[i].docIteratorGetMatch () == docid)) {
+          matched[i] = true;
+          bound += gains[i];
+        }
+      }
+
+      //  Check the non-essential arguments, largest gain first, while
+      //  the document can still reach the threshold.
+
+      boolean dropped = false;
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+        if (canSkip (bound + cumBounds[j] - baseBound, logThreshold)) {
+          dropped = true;
+          break;
+        }
+
+        int i = order[j];
+
+        iterators[i].docIteratorAdvanceTo (docid);
+
+        if (iterators[i].docIteratorHasMatch (r) &&
+            (iterators[i].docIteratorGetMatch () == docid)) {
+          matched[i] = true;
+          bound += gains[i];
+        }
+      }
+
+      if (! dropped) {
+        double score = 1.0;
+
+        if (logSpace) {
+          double logScore = 0.0;
+
+          for (int i = 0; i < n; i++) {
+            logScore += exponents[i] *
+              (matched[i] ? scorers[i].getLogScore (r)
+                          : scorers[i].getLogDefaultScore (r, docid));
+          }
+
+          score = Math.exp (logScore);
+        } else {
+          for (int i = 0; i < n; i++) {
+            argScores[i] = matched[i] ? scorers[i].getScore (r)
+                                      : scorers[i].getDefaultScore (r, docid);
+            score *= Math.pow (argScores[i], exponents[i]);
+          }
+        }
+
+        results.add (docid, score);
+        scored ++;
+
+        if (prune) {
+          double threshold = results.getThreshold ();
+
+          logThreshold = (threshold > 0.0) ? Math.log (threshold)
+                                           : Double.NEGATIVE_INFINITY;
+        }
+      }
+
+      Arrays.fill (matched, false);
+
+      for (int j = firstEssential; j < n; j++) {
+        iterators[order[j]].docIteratorAdvancePast (docid);
+      }
+    }
+
+    return scored;
+  }
+
+  /**
+   *  Indicates whether a document whose log score can't exceed a bound
+   *  can be dropped.
+   */
+  private static boolean canSkip (double logBound, double logThreshold) {
+    return logBound < logThreshold - LOG_SLACK;
+  }
+}
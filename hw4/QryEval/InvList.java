@@ -4,6 +4,7 @@
 
 import java.util.*;
 import java.io.*;
+import java.nio.*;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.util.*;
@@ -14,11 +15,27 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in parallel primitive arrays rather than as
+ *  one object per posting.  Document ids and term frequencies are
+ *  flat int arrays, so they can be accessed (and searched) randomly.
+ *  The positions of all postings share one byte array.  Within a
+ *  posting, positions are delta-encoded and each delta is written as
+ *  a variable-length integer (7 bits per byte, high bit set on every
+ *  byte except the last); positionOffsets records where each
+ *  posting's block starts.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial number of postings (and position bytes per posting)
+   *  allocated for an inverted list whose size isn't known in advance.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -37,50 +54,41 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field, in ascending order.  Only the first df entries
+   *  are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequency:  The number of times the term occurs in the
+   *  specified field of the n'th document.
    */
-  public class DocPosting {
+  private int[] tfs;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  The offset in positionBytes of the n'th document's positions.
+   */
+  private int[] positionOffsets;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The delta and variable-byte encoded locations where the term
+   *  occurs in the specified field of each document.
+   */
+  private byte[] positionBytes;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The number of bytes of positionBytes that are in use.
+   */
+  private int positionBytesLength = 0;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The largest term frequency and the shortest field length of the
+   *  documents in the list, or -1 if they haven't been computed yet.
+   *  Retrieval models use them to bound the scores of the list.
+   */
+  private int maxTf = -1;
+  private int minFieldLength = -1;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +96,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -96,6 +105,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -115,8 +125,18 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int docFreq = Idx.INDEXREADER.docFreq(term);
+
+    if (docFreq < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The document frequency is known, so the docid and tf arrays
+    //  can be allocated once.  Deleted documents may make it an
+    //  overestimate; compact trims the excess.
+
+    this.allocate (docFreq, 2 * docFreq);
 
     //  Lookup the inverted list.
 
@@ -130,18 +150,34 @@ public class InvList {
     //  operators such as #SYN and #NEAR/n to be insulated from the
     //  details of Lucene inverted list implementations.
 
+    int[] positions = new int[INITIAL_CAPACITY];
+
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      if (positions.length < tf)
+        positions = new int[Math.max (tf, 2 * positions.length)];
 
       for (int j = 0; j < tf; j++)
         positions[j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      this.appendPosting (iList.docID(), positions, tf);
     }
+
+    this.compact ();
+  }
+
+  /**
+   *  Allocate the internal arrays.
+   *  @param postings The initial number of postings.
+   *  @param bytes The initial number of position bytes.
+   */
+  private void allocate (int postings, int bytes) {
+    this.docids = new int[postings];
+    this.tfs = new int[postings];
+    this.positionOffsets = new int[postings];
+    this.positionBytes = new byte[bytes];
   }
 
   /**
@@ -152,29 +188,170 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
+
+    int[] p = new int[positions.size()];
+
+    for (int i = 0; i < p.length; i++)
+      p[i] = positions.get(i);
+
+    return this.appendPosting (docid, p, p.length);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, and positions must be in ascending order,
+   *  otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array whose first tf entries are the positions
+   *  where the term occurs.
+   *  @param tf The number of positions.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int tf) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    for (int i = 1; i < tf; i++)
+      if (positions[i] < positions[i-1])
+        return false;
+
+    //  Make room for the posting and the worst case size of its
+    //  encoded positions (5 bytes per position).
+
+    if (this.df == this.docids.length) {
+      int capacity = Math.max (INITIAL_CAPACITY, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, capacity);
+    }
+
+    int needed = this.positionBytesLength + 5 * tf;
+
+    if (needed > this.positionBytes.length) {
+      this.positionBytes = Arrays.copyOf (this.positionBytes,
+        Math.max (needed, 2 * this.positionBytes.length));
+    }
+
+    //  Store the posting.
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionOffsets[this.df] = this.positionBytesLength;
+
+    int prev = 0;
+
+    for (int i = 0; i < tf; i++) {
+      int delta = positions[i] - prev;
+      prev = positions[i];
+
+      while ((delta & ~0x7F) != 0) {
+        this.positionBytes[this.positionBytesLength++] =
+          (byte) ((delta & 0x7F) | 0x80);
+        delta >>>= 7;
+      }
+      this.positionBytes[this.positionBytesLength++] = (byte) delta;
+    }
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.maxTf = -1;
+    this.minFieldLength = -1;
     return true;
   }
 
+  /**
+   *  Release unused capacity.  Call this when no more postings will
+   *  be appended.
+   */
+  public void compact () {
+    if (this.docids.length != this.df) {
+      this.docids = Arrays.copyOf (this.docids, this.df);
+      this.tfs = Arrays.copyOf (this.tfs, this.df);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, this.df);
+    }
+
+    if (this.positionBytes.length != this.positionBytesLength) {
+      this.positionBytes =
+        Arrays.copyOf (this.positionBytes, this.positionBytesLength);
+    }
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the largest term frequency of the documents in the list.
+   *  @return The largest term frequency, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+    if (this.maxTf < 0) {
+      int max = 0;
+      for (int i = 0; i < this.df; i++)
+        max = Math.max (max, this.tfs[i]);
+      this.maxTf = max;
+    }
+    return this.maxTf;
+  }
+
+  /**
+   *  Get the shortest length of the list's field in the documents in
+   *  the list, according to the current index.
+   *  @return The shortest field length, or 0 if the list is empty.
+   */
+  public int getMinFieldLength() {
+    if (this.minFieldLength < 0) {
+      int ordinal = Idx.getFieldOrdinal (this.field);
+      int min = (this.df > 0) ? Integer.MAX_VALUE : 0;
+      for (int i = 0; i < this.df; i++)
+        min = Math.min (min, Idx.getFieldLength (ordinal, this.docids[i]));
+      this.minFieldLength = min;
+    }
+    return this.minFieldLength;
+  }
+
+  /**
+   *  Get the positions of the n'th document of the inverted list.
+   *  The positions are decoded into the buffer, which is replaced by
+   *  a larger array if it is too small.
+   *  @param n The index of the requested document.
+   *  @param buffer An array to reuse, or null.
+   *  @return An array whose first getTf(n) entries are the positions.
+   */
+  public int[] getPositions(int n, int[] buffer) {
+
+    int tf = this.tfs[n];
+
+    if ((buffer == null) || (buffer.length < tf))
+      buffer = new int[Math.max (tf, INITIAL_CAPACITY)];
+
+    int offset = this.positionOffsets[n];
+    int position = 0;
+
+    for (int i = 0; i < tf; i++) {
+      int b = this.positionBytes[offset++];
+      int delta = b & 0x7F;
+
+      for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+        b = this.positionBytes[offset++];
+        delta |= (b & 0x7F) << shift;
+      }
+
+      position += delta;
+      buffer[i] = position;
+    }
+
+    return buffer;
   }
 
   /**
@@ -183,7 +360,52 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Read an inverted list that was written by write.
+   *  @param in A buffer positioned at the start of the list.  Its
+   *  position is moved past the list.
+   *  @param fieldString The field that the list covers.
+   *  @return The inverted list.
+   *  @throws BufferUnderflowException The buffer is too short.
+   */
+  public static InvList read (ByteBuffer in, String fieldString) {
+
+    InvList list = new InvList ();
+    int df = in.getInt ();
+    int ctf = in.getInt ();
+    int bytes = in.getInt ();
+
+    list.field = fieldString;
+    list.allocate (df, bytes);
+    list.df = df;
+    list.ctf = ctf;
+    list.positionBytesLength = bytes;
+
+    in.asIntBuffer ().get (list.docids);
+    in.position (in.position () + 4 * df);
+    in.asIntBuffer ().get (list.tfs);
+    in.position (in.position () + 4 * df);
+    in.asIntBuffer ().get (list.positionOffsets);
+    in.position (in.position () + 4 * df);
+    in.get (list.positionBytes);
+
+    return list;
+  }
+
+  /**
+   *  Estimate the number of bytes of heap used by the inverted list,
+   *  including unused capacity.
+   *  @return The estimated size in bytes.
+   */
+  public long ramBytesUsed() {
+    return 64 +
+      16 + 4L * this.docids.length +
+      16 + 4L * this.tfs.length +
+      16 + 4L * this.positionOffsets.length +
+      16 + this.positionBytes.length;
   }
 
   /**
@@ -193,15 +415,44 @@ public class InvList {
 
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
+    int[] positions = null;
+
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
+
+      positions = this.getPositions (i, positions);
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(positions[j] + " ");
       }
 
       System.out.println();
     }
   }
+
+  /**
+   *  Write the inverted list in a compact binary form that read
+   *  restores:  df, ctf, the number of position bytes, the docids, the
+   *  term frequencies, the position offsets, and the position bytes.
+   *  @param out Where to write the list.
+   *  @throws IOException Error writing the list.
+   */
+  public void write (DataOutput out) throws IOException {
+
+    out.writeInt (this.df);
+    out.writeInt (this.ctf);
+    out.writeInt (this.positionBytesLength);
+
+    for (int i = 0; i < this.df; i++)
+      out.writeInt (this.docids[i]);
+
+    for (int i = 0; i < this.df; i++)
+      out.writeInt (this.tfs[i]);
+
+    for (int i = 0; i < this.df; i++)
+      out.writeInt (this.positionOffsets[i]);
+
+    out.write (this.positionBytes, 0, this.positionBytesLength);
+  }
 }
@@ -0,0 +1,167 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  A size-bounded, least-recently-used cache of evaluated inverted
+ *  lists.  Lists are keyed by the canonical string of the query
+ *  operator that produced them, for example "apple.body" for a term or
+ *  "#near/1( apple.body pie.body )" for a proximity operator, so
+ *  repeated terms and derived lists are evaluated once per index.
+ *  <p>
+ *  The cache is bounded by the estimated heap size of the cached
+ *  lists (InvList.ramBytesUsed), not by the number of lists.  Cached
+ *  lists are shared by every query operator that uses them, so they
+ *  must not be modified after they are cached.  A budget of 0 bytes
+ *  disables the cache.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The maximum number of bytes of inverted lists to cache.
+   */
+  private long maxBytes;
+
+  /**
+   *  The number of bytes of inverted lists cached now.
+   */
+  private long bytes = 0;
+
+  /**
+   *  The cached lists, in least-recently-used to most-recently-used
+   *  order.
+   */
+  private LinkedHashMap<String,InvList> lists =
+    new LinkedHashMap<String,InvList> (16, 0.75f, true);
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param maxBytes The maximum number of bytes of inverted lists to
+   *  cache.  0 disables the cache.
+   */
+  public InvListCache (long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   *  Remove every list from the cache.  The hit, miss, and eviction
+   *  counts are not affected.
+   */
+  public synchronized void clear () {
+    this.lists.clear ();
+    this.bytes = 0;
+  }
+
+  /**
+   *  Get a cached inverted list.
+   *  @param key The canonical string of the query operator.
+   *  @return The cached inverted list, or null if it isn't cached.
+   */
+  public synchronized InvList get (String key) {
+    InvList list = this.lists.get (key);
+
+    if (list == null) {
+      this.misses ++;
+    } else {
+      this.hits ++;
+    }
+
+    return list;
+  }
+
+  /**
+   *  Evict least-recently-used lists until the cache is within its
+   *  budget.
+   */
+  private void evict () {
+
+    Iterator<Map.Entry<String,InvList>> iter = this.lists.entrySet ().iterator ();
+
+    while ((this.bytes > this.maxBytes) && iter.hasNext ()) {
+      Map.Entry<String,InvList> e = iter.next ();
+      this.bytes -= e.getValue ().ramBytesUsed () + 2L * e.getKey ().length ();
+      iter.remove ();
+      this.evictions ++;
+    }
+  }
+
+  public synchronized long getEvictions () {
+    return this.evictions;
+  }
+
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Indicates whether the cache has a non-zero budget.
+   *  @return True if the cache is enabled, otherwise false.
+   */
+  public synchronized boolean isEnabled () {
+    return (this.maxBytes > 0);
+  }
+
+  /**
+   *  Cache an inverted list, evicting least-recently-used lists until
+   *  the cache is within its budget.  Lists that are larger than the
+   *  entire budget are not cached.
+   *  @param key The canonical string of the query operator.
+   *  @param list The inverted list.  It must not be modified later.
+   */
+  public synchronized void put (String key, InvList list) {
+
+    long size = list.ramBytesUsed () + 2L * key.length ();
+
+    if (size > this.maxBytes) {
+      return;
+    }
+
+    InvList old = this.lists.put (key, list);
+
+    if (old != null) {
+      this.bytes -= old.ramBytesUsed () + 2L * key.length ();
+    }
+
+    this.bytes += size;
+
+    this.evict ();
+  }
+
+  /**
+   *  Change the cache budget, evicting lists if necessary.
+   *  @param maxBytes The maximum number of bytes of inverted lists to
+   *  cache.  0 disables the cache.
+   */
+  public synchronized void setMaxBytes (long maxBytes) {
+    this.maxBytes = maxBytes;
+
+    this.evict ();
+  }
+
+  /**
+   *  Get a string version of the cache statistics.
+   *  @return The cache statistics.
+   */
+  @Override public synchronized String toString () {
+    return ("InvList cache:  hits=" + this.hits +
+            ", misses=" + this.misses +
+            ", evictions=" + this.evictions +
+            ", lists=" + this.lists.size () +
+            ", bytes=" + this.bytes + "/" + this.maxBytes);
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates a BM25 #SUM query with MaxScore dynamic pruning, finding
+ *  the same top-k results as scoring every matching document.
+ *  <p>
+ *  Each argument has an upper bound on its score (see
+ *  QrySopScore.getMaxScore).  The arguments are sorted by upper bound.
+ *  Once the top-k list is full, its worst score is a threshold that a
+ *  new document must reach.  The arguments with the smallest bounds
+ *  whose bounds add up to less than the threshold are
+ *  <i>non-essential</i>: a document that matches only them can't
+ *  enter the list, so candidate documents come from the essential
+ *  arguments only.  The non-essential arguments are then checked in
+ *  decreasing order of their bounds, and a candidate is dropped as
+ *  soon as its partial score plus the remaining bounds is below the
+ *  threshold.  Non-essential iterators jump directly to candidates,
+ *  so most of their postings are skipped.
+ *  </p>
+ *  <p>
+ *  The score of a document that isn't dropped is summed in argument
+ *  order, exactly as QrySopSum.getScore does, so scores are identical
+ *  to exhaustive evaluation.  A document whose bound equals the
+ *  threshold is never dropped, because it may win the tie on external
+ *  docid.
+ *  </p>
+ */
+public class MaxScoreEvaluator {
+
+  /**
+   *  The relative amount by which a bound must be below the threshold
+   *  before a document is dropped.  It covers rounding differences
+   *  between bounds and scores that are summed in different orders.
+   */
+  private static final double SLACK = 1e-9;
+
+  /**
+   *  Indicates whether a query can be evaluated with MaxScore.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is a #SUM of SCORE operators and r is BM25.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! ((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25))) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Indicates whether a document whose score can't exceed a bound can
+   *  be dropped.  Other pruning evaluators use the same test.
+   */
+  static boolean canSkip (double bound, double threshold) {
+    return bound < threshold - SLACK * Math.abs (threshold);
+  }
+
+  /**
+   *  Evaluate an initialized query, adding the top documents to a
+   *  bounded score list.
+   *  @param q The query.  canEvaluate must be true for it.
+   *  @param r The retrieval model.
+   *  @param results A bounded score list.
+   *  @return The number of documents that were scored completely.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int evaluate (Qry q, RetrievalModel r, ScoreList results)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] scorers = new QrySopScore[n];
+    QryIop[] iterators = new QryIop[n];
+    final double[] bounds = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      scorers[i] = (QrySopScore) q.args.get (i);
+      iterators[i] = (QryIop) scorers[i].args.get (0);
+      bounds[i] = scorers[i].getMaxScore (r);
+    }
+
+    //  Sort the arguments by upper bound.  cumBounds[j] is the sum of
+    //  the bounds of the arguments order[0..j].
+
+    Integer[] sorted = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+
+    Arrays.sort (sorted, new Comparator<Integer> () {
+      @Override
+      public int compare (Integer i1, Integer i2) {
+        return Double.compare (bounds[i1], bounds[i2]);
+      }
+    });
+
+    int[] order = new int[n];
+    double[] cumBounds = new double[n];
+
+    for (int j = 0; j < n; j++) {
+      order[j] = sorted[j];
+      cumBounds[j] = ((j > 0) ? cumBounds[j - 1] : 0.0) + bounds[order[j]];
+    }
+
+    double threshold = results.getThreshold ();
+    int firstEssential = 0;
+    double[] termScores = new double[n];
+    boolean[] matched = new boolean[n];
+    int scored = 0;
+
+    while (true) {
+
+      while ((firstEssential < n) &&
+             canSkip (cumBounds[firstEssential], threshold)) {
+        firstEssential ++;
+      }
+
+      //  The next candidate is the smallest docid of the essential
+      //  arguments.
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int j = firstEssential; j < n; j++) {
+        QryIop q_j = iterators[order[j]];
+
+        if (q_j.docIteratorHasMatch (r)) {
+          docid = Math.min (docid, q_j.docIteratorGetMatch ());
+        }
+      }
+
+      if (docid == Integer.MAX_VALUE) {
+        break;
+      }
+
+      //  Score the essential arguments.
+
+      double partial = 0.0;
+
+      for (int j = firstEssential; j < n; j++) {
+        int i = order[j];
+
+        if (iterators[i].docIteratorHasMatch (r) &&
+            (iterators[i].docIteratorGetMatch () == docid)) {
+          termScores[i] = scorers[i].getScore (r);
+          matched[i] = true;
+          partial += termScores[i];
+        }
+      }
+
+      //  Add the non-essential arguments, largest bound first, while
+      //  the document can still reach the threshold.
+
+      boolean dropped = false;
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+        if (canSkip (partial + cumBounds[j], threshold)) {
+          dropped = true;
+          break;
+        }
+
+        int i = order[j];
+
+        iterators[i].docIteratorAdvanceTo (docid);
+
+        if (iterators[i].docIteratorHasMatch (r) &&
+            (iterators[i].docIteratorGetMatch () == docid)) {
+          termScores[i] = scorers[i].getScore (r);
+          matched[i] = true;
+          partial += termScores[i];
+        }
+      }
+
+      if (! dropped) {
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          if (matched[i]) {
+            score += termScores[i];
+          }
+        }
+
+        results.add (docid, score);
+        threshold = results.getThreshold ();
+        scored ++;
+      }
+
+      Arrays.fill (matched, false);
+
+      for (int j = firstEssential; j < n; j++) {
+        iterators[order[j]].docIteratorAdvancePast (docid);
+      }
+    }
+
+    return scored;
+  }
+}
@@ -0,0 +1,296 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ *  A size-bounded, least-recently-used cache of evaluated proximity
+ *  operator (#NEAR/n, #WINDOW/n) inverted lists, stored in a directory
+ *  so that it persists across runs.  Unlike InvListCache, which keeps
+ *  lists for one run, it lets repeated phrase queries skip positional
+ *  intersection in later runs too.
+ *  <p>
+ *  Each list is a file whose name is a hash of its key.  The key is
+ *  the index's path and version, the field, and the canonical string
+ *  of the operator (e.g., "#near/1( apple.body pie.body )"), so lists
+ *  of another index or another version of the index are never used.
+ *  The full key is stored in the file and checked when the list is
+ *  read.  A cached list is memory-mapped and copied into an InvList.
+ *  </p>
+ *  <p>
+ *  The cache is bounded by the total size of its files.  A file's
+ *  modification time records when it was last used, so the eviction
+ *  order survives across runs.  Files are written to a temporary file
+ *  that is renamed, so readers never see a partial list.
+ *  </p>
+ *  <p>
+ *  File format:  magic, format version, the number of key bytes, the
+ *  UTF-8 key, and the list (see InvList.write).
+ *  </p>
+ */
+public class ProximityListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x5145504c;		// "QEPL"
+  private static final int FORMAT = 1;
+  private static final String SUFFIX = ".invlist";
+
+  /**
+   *  The directory that holds the cached lists.
+   */
+  private File dir;
+
+  /**
+   *  The maximum number of bytes of cached list files.
+   */
+  private long maxBytes;
+
+  /**
+   *  The number of bytes of cached list files now.
+   */
+  private long bytes = 0;
+
+  /**
+   *  The sizes of the cached list files, by file name, in
+   *  least-recently-used to most-recently-used order.
+   */
+  private LinkedHashMap<String,Long> files =
+    new LinkedHashMap<String,Long> (16, 0.75f, true);
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a cache directory, creating it if necessary.  Lists that are
+   *  already in the directory are added in order of last use.
+   *  @param dir The cache directory.
+   *  @param maxBytes The maximum number of bytes of cached list files.
+   *  @throws IOException The directory can't be created.
+   */
+  public ProximityListCache (File dir, long maxBytes) throws IOException {
+
+    if (! (dir.isDirectory () || dir.mkdirs ())) {
+      throw new IOException ("Can't create the proximity cache directory " + dir);
+    }
+
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+
+    File[] existing = dir.listFiles (new FilenameFilter () {
+      @Override
+      public boolean accept (File d, String name) {
+        return name.endsWith (SUFFIX);
+      }
+    });
+
+    Arrays.sort (existing, new Comparator<File> () {
+      @Override
+      public int compare (File f1, File f2) {
+        return Long.compare (f1.lastModified (), f2.lastModified ());
+      }
+    });
+
+    for (File f : existing) {
+      this.files.put (f.getName (), f.length ());
+      this.bytes += f.length ();
+    }
+
+    this.evict ();
+  }
+
+  /**
+   *  Evict least-recently-used lists until the cache is within its
+   *  budget.
+   */
+  private void evict () {
+
+    Iterator<Map.Entry<String,Long>> iter = this.files.entrySet ().iterator ();
+
+    while ((this.bytes > this.maxBytes) && iter.hasNext ()) {
+      Map.Entry<String,Long> e = iter.next ();
+      new File (this.dir, e.getKey ()).delete ();
+      this.bytes -= e.getValue ();
+      iter.remove ();
+      this.evictions ++;
+    }
+  }
+
+  /**
+   *  Get a cached inverted list.
+   *  @param indexId The path and version of the index.
+   *  @param field The field that the list covers.
+   *  @param key The canonical string of the query operator.
+   *  @return The cached inverted list, or null if it isn't cached.
+   */
+  public synchronized InvList get (String indexId, String field, String key) {
+
+    String fullKey = fullKey (indexId, field, key);
+    String name = fileName (fullKey);
+    InvList list = null;
+
+    if (this.files.get (name) != null) {
+      File file = new File (this.dir, name);
+      list = read (file, fullKey, field);
+
+      if (list == null) {
+        this.bytes -= this.files.remove (name);
+        file.delete ();
+      } else {
+        file.setLastModified (System.currentTimeMillis ());
+      }
+    }
+
+    if (list == null) {
+      this.misses ++;
+    } else {
+      this.hits ++;
+    }
+
+    return list;
+  }
+
+  public synchronized long getEvictions () {
+    return this.evictions;
+  }
+
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Cache an inverted list, evicting least-recently-used lists until
+   *  the cache is within its budget.  Lists that are larger than the
+   *  entire budget are not cached.  Failure to write the list (e.g., a
+   *  full disk) is ignored.
+   *  @param indexId The path and version of the index.
+   *  @param field The field that the list covers.
+   *  @param key The canonical string of the query operator.
+   *  @param list The inverted list.
+   */
+  public synchronized void put (String indexId, String field, String key,
+                                InvList list) {
+
+    String fullKey = fullKey (indexId, field, key);
+    String name = fileName (fullKey);
+    File file = new File (this.dir, name);
+    File tmp = null;
+
+    try {
+      tmp = File.createTempFile (name, ".tmp", this.dir);
+
+      try (DataOutputStream out = new DataOutputStream (
+             new BufferedOutputStream (new FileOutputStream (tmp)))) {
+        byte[] keyBytes = fullKey.getBytes (StandardCharsets.UTF_8);
+
+        out.writeInt (MAGIC);
+        out.writeInt (FORMAT);
+        out.writeInt (keyBytes.length);
+        out.write (keyBytes);
+        list.write (out);
+      }
+
+      if ((tmp.length () > this.maxBytes) || ! tmp.renameTo (file)) {
+        tmp.delete ();
+        return;
+      }
+    } catch (IOException ex) {
+      if (tmp != null) {
+        tmp.delete ();
+      }
+      return;
+    }
+
+    Long old = this.files.put (name, file.length ());
+
+    if (old != null) {
+      this.bytes -= old;
+    }
+
+    this.bytes += file.length ();
+
+    this.evict ();
+  }
+
+  /**
+   *  Get a string version of the cache statistics.
+   *  @return The cache statistics.
+   */
+  @Override public synchronized String toString () {
+    return ("Proximity cache:  hits=" + this.hits +
+            ", misses=" + this.misses +
+            ", evictions=" + this.evictions +
+            ", lists=" + this.files.size () +
+            ", bytes=" + this.bytes + "/" + this.maxBytes);
+  }
+
+  /**
+   *  Get the name of the file that holds a list:  the hex SHA-1 hash
+   *  of the full key.
+   */
+  private static String fileName (String fullKey) {
+
+    byte[] hash;
+
+    try {
+      hash = MessageDigest.getInstance ("SHA-1").digest (
+        fullKey.getBytes (StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException (ex);	// Every JVM has SHA-1.
+    }
+
+    StringBuilder name = new StringBuilder ();
+
+    for (byte b : hash) {
+      name.append (String.format ("%02x", b & 0xFF));
+    }
+
+    return name.append (SUFFIX).toString ();
+  }
+
+  private static String fullKey (String indexId, String field, String key) {
+    return (indexId + "\n" + field + "\n" + key);
+  }
+
+  /**
+   *  Memory-map a cached list and read it.
+   *  @return The list, or null if the file can't be read or has
+   *  another key.
+   */
+  private static InvList read (File file, String fullKey, String field) {
+
+    try (RandomAccessFile f = new RandomAccessFile (file, "r");
+         FileChannel channel = f.getChannel ()) {
+
+      ByteBuffer in = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((in.getInt () != MAGIC) || (in.getInt () != FORMAT)) {
+        return null;
+      }
+
+      byte[] keyBytes = new byte[in.getInt ()];
+      in.get (keyBytes);
+
+      if (! fullKey.equals (new String (keyBytes, StandardCharsets.UTF_8))) {
+        return null;
+      }
+
+      return InvList.read (in, field);
+    } catch (IOException | RuntimeException ex) {
+      return null;		// Missing, truncated, or corrupt.
+    }
+  }
+}
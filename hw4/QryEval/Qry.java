@@ -66,7 +66,7 @@ import java.util.*;
  *  query evaluation, which reduces computational efficiency.
  *  </p>
  */
-public abstract class Qry {
+public abstract class Qry implements Cloneable {
 
   //  --------------- Constants and variables ---------------------
 
@@ -375,6 +375,48 @@ public abstract class Qry {
     this.docIteratorMatchCache = docid;
   }
 
+  /**
+   *  Create a copy of an initialized query that has its own iterators,
+   *  which point to the first document.  The copy shares inverted
+   *  lists, weights, and scoring constants with this query, so it
+   *  doesn't need to be initialized, and several copies can iterate
+   *  over different parts of the document space at the same time.
+   *  This query's iterators are not changed.
+   *  @return The copy.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public Qry duplicate () throws IOException {
+
+    Qry copy;
+
+    try {
+      copy = (Qry) this.clone ();
+    } catch (CloneNotSupportedException ex) {
+      throw new IllegalStateException (ex);
+    }
+
+    copy.args = new ArrayList<Qry> (this.args.size ());
+
+    for (Qry q_i : this.args) {
+      copy.args.add (q_i.duplicate ());
+    }
+
+    copy.docIteratorMatchCache = Qry.INVALID_DOCID;
+    copy.matchStored = false;
+    copy.duplicateIterators ();
+
+    return copy;
+  }
+
+  /**
+   *  Give a copy made by duplicate its own iterators, pointing to the
+   *  first document.  Subclasses that have iterator state override
+   *  this method.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void duplicateIterators () throws IOException {
+  }
+
   /**
    *  Get the i'th query argument.  The main value of this method
    *  is that it casts the argument to the correct type.
@@ -385,6 +427,29 @@ public abstract class Qry {
     return ((QryIop) this.args.get(i));
   }
 
+  /**
+   *  Get a string that identifies what this query operator computes,
+   *  independent of how the query was written (e.g., "#near/1(
+   *  apple.body pie.body )").  It is used as a cache key.  Operators
+   *  whose results depend on more than their name and arguments
+   *  (e.g., weights) must override it.
+   *  @return The canonical string of the query operator.
+   */
+  public String getCanonicalString () {
+
+    StringBuilder result =
+      new StringBuilder (this.getDisplayName ().toLowerCase ());
+
+    result.append ("( ");
+
+    for (int i=0; i<this.args.size(); i++) {
+      result.append (this.args.get (i).getCanonicalString ());
+      result.append (" ");
+    }
+
+    return result.append (")").toString ();
+  }
+
   /**
    *  Every operator has a display name that can be used by
    *  toString for debugging or other user feedback.  
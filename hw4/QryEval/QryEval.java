@@ -4,6 +4,7 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -34,6 +35,96 @@ public class QryEval {
   private static final String[] TEXT_FIELDS =
     { "body", "title", "url", "inlink" };
 
+  /**
+   *  The number of results written for each query.
+   */
+  private static final int MAX_RESULTS = 100;
+
+  /**
+   *  The default budget of the persistent proximity list cache.
+   */
+  private static final long DEFAULT_PROXIMITY_CACHE_BYTES = 1L << 30;
+
+  /**
+   *  The default number of queries in the query result cache when it
+   *  is saved to a file but its size isn't specified.
+   */
+  private static final int DEFAULT_QUERY_CACHE_SIZE = 10000;
+
+  /**
+   *  Dynamic pruning strategies for top-k evaluation.  Either strategy
+   *  evaluates Indri #AND and #WAND queries with score bounds (see
+   *  IndriAndEvaluator).
+   */
+  private static enum Pruning { NONE, MAXSCORE, BMW };
+
+  /**
+   *  How queries are pruned, and whether pruned results are checked
+   *  against exhaustive evaluation.
+   */
+  private static Pruning pruning = Pruning.NONE;
+  private static boolean pruningCheck = false;
+
+  /**
+   *  The number of threads that evaluate the queries of a query file,
+   *  and whether they are virtual threads.  One thread evaluates
+   *  queries in the order that they are read.
+   */
+  private static int queryThreads = 1;
+  private static boolean virtualThreads = false;
+
+  /**
+   *  The number of docid ranges that a query is split into, which are
+   *  evaluated in parallel, and the threads that evaluate all but one
+   *  of them.
+   */
+  private static int queryPartitions = 1;
+  private static ExecutorService partitionExecutor = null;
+
+  /**
+   *  The results of queries that were evaluated already, or null if
+   *  results aren't cached, and the file that they are saved to.
+   */
+  private static QueryResultCache queryCache = null;
+  private static File queryCacheFile = null;
+
+  /**
+   *  Whether the queries of a query file share the inverted lists of
+   *  subtrees that occur in several queries (see BatchInvLists).
+   */
+  private static boolean shareBatchLists = false;
+
+  /**
+   *  Whether the plan of each query is printed (see QryPlan.explain).
+   */
+  private static boolean explain = false;
+
+  /**
+   *  Whether the number of postings that each query touched and
+   *  skipped is printed (see QryIop.getPostingsTouched).
+   */
+  private static boolean postingStats = false;
+
+  /**
+   *  How queries that are not pruned are evaluated:
+   *  document-at-a-time, term-at-a-time when TaatEvaluator can
+   *  evaluate them, score-at-a-time from impact-ordered postings when
+   *  SaatEvaluator can evaluate them, with docid sets when
+   *  BitmapEvaluator can evaluate them, or as the query's plan chooses
+   *  (see QryPlan).  Score-at-a-time scores are approximate, so the
+   *  plan never chooses it.  Automatic evaluation always uses docid
+   *  sets for Boolean queries that BitmapEvaluator can evaluate.
+   */
+  private static enum Evaluation { DAAT, TAAT, SAAT, BITMAP, AUTO };
+
+  private static Evaluation evaluation = Evaluation.DAAT;
+
+  /**
+   *  The largest number of postings that score-at-a-time evaluation
+   *  processes for a query, or 0 for no limit.
+   */
+  private static long saatPostingBudget = 0;
+
 
 
   //  --------------- Methods ---------------------------------------
@@ -62,14 +153,131 @@ public class QryEval {
 
     Map<String, String> parameters = readParameterFile (args[0]);
 
+    if (parameters.containsKey ("lazyTermPostings")) {
+      QryIopTerm.setLazyPostings (
+        Boolean.parseBoolean (parameters.get ("lazyTermPostings")));
+    }
+
     //  Open the index and initialize the retrieval model.
+    if (parameters.containsKey ("docLengthStorage")) {
+      Idx.setDocLengthStorage (DocLengthStore.Storage.valueOf (
+        parameters.get ("docLengthStorage").toUpperCase ()));
+    }
+
+    if (parameters.containsKey ("pruning")) {
+      pruning = Pruning.valueOf (parameters.get ("pruning").toUpperCase ());
+    }
+
+    if (parameters.containsKey ("pruningCheck")) {
+      pruningCheck = Boolean.parseBoolean (parameters.get ("pruningCheck"));
+    }
+
+    if (parameters.containsKey ("queryThreads")) {
+      queryThreads = Integer.parseInt (parameters.get ("queryThreads"));
+
+      if (queryThreads < 1) {
+        throw new IllegalArgumentException ("queryThreads must be at least 1");
+      }
+    }
+
+    if (parameters.containsKey ("queryPartitions")) {
+      queryPartitions = Integer.parseInt (parameters.get ("queryPartitions"));
+
+      if (queryPartitions < 1) {
+        throw new IllegalArgumentException ("queryPartitions must be at least 1");
+      }
+    }
+
+    if (parameters.containsKey ("queryThreadType")) {
+      String type = parameters.get ("queryThreadType").toLowerCase ();
+
+      if (! (type.equals ("platform") || type.equals ("virtual"))) {
+        throw new IllegalArgumentException
+          ("queryThreadType must be platform or virtual");
+      }
+
+      virtualThreads = type.equals ("virtual");
+    }
+
+    if (parameters.containsKey ("shareBatchLists")) {
+      shareBatchLists = Boolean.parseBoolean (parameters.get ("shareBatchLists"));
+    }
+
+    if (parameters.containsKey ("queryEvaluation")) {
+      evaluation = Evaluation.valueOf (
+        parameters.get ("queryEvaluation").toUpperCase ());
+    }
+
+    if (parameters.containsKey ("saatPostingBudget")) {
+      saatPostingBudget = Long.parseLong (parameters.get ("saatPostingBudget"));
+    }
+
+    if (parameters.containsKey ("explain")) {
+      explain = Boolean.parseBoolean (parameters.get ("explain"));
+    }
+
+    if (parameters.containsKey ("postingStats")) {
+      postingStats = Boolean.parseBoolean (parameters.get ("postingStats"));
+    }
+
     Idx.open (parameters.get ("indexPath"));
+
+    if (parameters.containsKey ("invListCacheBytes")) {
+      Idx.setInvListCacheSize (
+        Long.parseLong (parameters.get ("invListCacheBytes")));
+    }
+
+    if (parameters.containsKey ("proximityCacheDir")) {
+      long maxBytes = DEFAULT_PROXIMITY_CACHE_BYTES;
+
+      if (parameters.containsKey ("proximityCacheBytes")) {
+        maxBytes = Long.parseLong (parameters.get ("proximityCacheBytes"));
+      }
+
+      Idx.setProximityListCache (
+        new File (parameters.get ("proximityCacheDir")), maxBytes);
+    }
+
+    if (parameters.containsKey ("queryCacheSize") ||
+        parameters.containsKey ("queryCacheFile")) {
+      int size = DEFAULT_QUERY_CACHE_SIZE;
+
+      if (parameters.containsKey ("queryCacheSize")) {
+        size = Integer.parseInt (parameters.get ("queryCacheSize"));
+      }
+
+      if (size > 0) {
+        queryCache = new QueryResultCache (size);
+
+        if (parameters.containsKey ("queryCacheFile")) {
+          queryCacheFile = new File (parameters.get ("queryCacheFile"));
+          queryCache.load (queryCacheFile);
+        }
+      }
+    }
+
     RetrievalModel model = initializeRetrievalModel (parameters);
 	
     //  Perform experiments.    
     processQueryFile(parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"), model);
 
     //  Clean up.
+    if (Idx.getInvListCache ().isEnabled ()) {
+      System.out.println (Idx.getInvListCache ());
+    }
+
+    if (Idx.getProximityListCache () != null) {
+      System.out.println (Idx.getProximityListCache ());
+    }
+
+    if (queryCache != null) {
+      System.out.println (queryCache);
+
+      if (queryCacheFile != null) {
+        queryCache.save (queryCacheFile);
+      }
+    }
+
     timer.stop ();
     System.out.println ("Time:  " + timer);
   }
@@ -153,6 +361,10 @@ public class QryEval {
 
 		model = new RetrievalModelIndri();
 		((RetrievalModelIndri) model).setParameters(lambda, mu);
+		if (parameters.containsKey("Indri:logSpace")) {
+			((RetrievalModelIndri) model).setLogSpace(
+			  Boolean.parseBoolean(parameters.get("Indri:logSpace")));
+		}
 		if (parameters.containsKey("fb")) {
 			((RetrievalModelIndri) model).setFbParameters(fbDocs, fbTerms, fbMu, fbOrigWeight, fbExpansionQueryFile, fbInitialRankingFile);
 		}
@@ -184,6 +396,23 @@ public class QryEval {
         + ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB");
   }
 
+  /**
+   * Parse a query, wrapping it in the retrieval model's default query
+   * operator.
+   * @param qString A string that contains a query.
+   * @param defaultField The field of terms that don't name one.
+   * @param model The retrieval model.
+   * @return The optimized query tree, or null if the query is empty.
+   * @throws IOException Error accessing the index
+   */
+  static Qry parseQuery(String qString, String defaultField, RetrievalModel model)
+    throws IOException {
+
+    String defaultOp = model.defaultQrySopName ();
+    qString = defaultOp + "(" + qString + ")";
+    return QryParser.getQuery (qString, defaultField, model);
+  }
+
   /**
    * Process one query.
    * @param qString A string that contains a query.
@@ -193,28 +422,131 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, String defaultField, RetrievalModel model)
     throws IOException {
+    return processQuery(qString, defaultField, model, MAX_RESULTS);
+  }
 
-    String defaultOp = model.defaultQrySopName ();
-    qString = defaultOp + "(" + qString + ")";
-    Qry q = QryParser.getQuery (qString, defaultField);
+  /**
+   * Process one query, keeping only the best results.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param maxResults The number of results to keep, or 0 to keep all.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, String defaultField, RetrievalModel model,
+                                int maxResults)
+    throws IOException {
+
+    Qry q = parseQuery (qString, defaultField, model);
 
     // Show the query that is evaluated
     
     System.out.println("    --> " + q);
+
+    QryPlan plan = null;
+
+    if ((q != null) && (explain || (evaluation == Evaluation.AUTO))) {
+      plan = QryPlan.create (q, model);
+
+      if (explain) {
+        System.out.print (plan.explain ());
+      }
+    }
     
     if (q != null) {
 
-      ScoreList r = new ScoreList ();
+      ScoreList r = new ScoreList (maxResults);
       
       if (q.args.size () > 0) {		// Ignore empty queries
 
-        q.initialize (model);
+        String cacheKey = null;
+
+        if (queryCache != null) {
+          cacheKey = QueryResultCache.getKey (q, model, maxResults);
+
+          //  Score-at-a-time results depend on the posting budget.
+
+          if (evaluation == Evaluation.SAAT) {
+            cacheKey += "\nsaat " + saatPostingBudget;
+          }
+
+          ScoreList cached = queryCache.get (cacheKey, maxResults);
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          r.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+          if (cached != null) {
+            System.out.println ("    cached results");
+
+            if (Idx.getBatchInvLists () != null) {
+              Idx.getBatchInvLists ().skip (q);
+            }
+
+            return cached;
+          }
+        }
+
+        QryIop.resetPostingCounters ();
+
+        //  Score-at-a-time evaluation reads the impact sidecar, so the
+        //  query's inverted lists aren't built.
+
+        boolean saat = ((evaluation == Evaluation.SAAT) &&
+                        SaatEvaluator.canEvaluate (q, model));
+
+        if (! saat) {
+          q.initialize (model);
+        } else if (Idx.getBatchInvLists () != null) {
+          Idx.getBatchInvLists ().skip (q);
+        }
+
+        boolean pruned = false;
+
+        if (saat) {
+          long processed =
+            SaatEvaluator.evaluate (q, model, r, saatPostingBudget);
+          System.out.println ("    saat: " + processed + " postings processed");
+        } else if ((pruning == Pruning.MAXSCORE) && (maxResults > 0) &&
+                   MaxScoreEvaluator.canEvaluate (q, model)) {
+          int scored = MaxScoreEvaluator.evaluate (q, model, r);
+          System.out.println ("    maxscore: " + scored + " documents scored");
+          pruned = true;
+        } else if ((pruning == Pruning.BMW) && (maxResults > 0) &&
+                   BlockMaxWandEvaluator.canEvaluate (q, model)) {
+          int scored = BlockMaxWandEvaluator.evaluate (q, model, r);
+          System.out.println ("    bmw: " + scored + " documents scored");
+          pruned = true;
+        } else if ((pruning != Pruning.NONE) && (maxResults > 0) &&
+                   IndriAndEvaluator.canEvaluate (q, model)) {
+          int scored = IndriAndEvaluator.evaluate (q, model, r);
+          System.out.println ("    bounded: " + scored + " documents scored");
+          pruned = true;
+        } else if (((evaluation == Evaluation.BITMAP) ||
+                    (evaluation == Evaluation.AUTO)) &&
+                   BitmapEvaluator.canEvaluate (q, model)) {
+          int matched = BitmapEvaluator.evaluate (q, model, r);
+          System.out.println ("    bitmap: " + matched + " documents matched");
+        } else if (((evaluation == Evaluation.TAAT) ||
+                    ((evaluation == Evaluation.AUTO) &&
+                     (plan.getStrategy () == QryPlan.Strategy.TAAT))) &&
+                   TaatEvaluator.canEvaluate (q, model)) {
+          int scored = TaatEvaluator.evaluate (q, model, r);
+          System.out.println ("    taat: " + scored + " documents scored");
+        } else if (queryPartitions > 1) {
+          evaluatePartitioned (q, model, r, maxResults);
+        } else {
+          evaluateExhaustive (q, model, r);
+        }
+
+        if (postingStats) {
+          System.out.println ("    postings touched: " +
+                              QryIop.getPostingsTouched () +
+                              ", skipped: " + QryIop.getPostingsSkipped ());
+        }
+
+        if (pruned && pruningCheck) {
+          checkPrunedResults (q, model, r, maxResults);
+        }
+
+        if (cacheKey != null) {
+          queryCache.put (cacheKey, r);
         }
       }
 
@@ -224,6 +556,199 @@ public class QryEval {
 		   
   }
 
+  /**
+   * Score every document that matches an initialized query.
+   * @param q The query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param r The score list that the results are added to.
+   * @throws IOException Error accessing the index
+   */
+  static void evaluateExhaustive(Qry q, RetrievalModel model, ScoreList r)
+    throws IOException {
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+      double score = ((QrySop) q).getScore (model);
+      r.add (docid, score);
+      q.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   * Score every document that matches an initialized query, splitting
+   * the docid space into queryPartitions ranges that are evaluated in
+   * parallel.  Each range is evaluated by a copy of the query (see
+   * Qry.duplicate) that starts at the first docid of the range and
+   * stops at the first match beyond it.  q's iterators don't move.  The best results of each
+   * range are merged.  Documents get the same scores as in
+   * evaluateExhaustive, and ties are broken by external docid, so the
+   * results are the same.
+   * @param q The query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param r The score list that the results are added to.
+   * @param maxResults The number of results kept, or 0 to keep all results.
+   * @throws IOException Error accessing the index
+   */
+  static void evaluatePartitioned(final Qry q, final RetrievalModel model,
+                                  ScoreList r, final int maxResults)
+    throws IOException {
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    int n = Math.min (queryPartitions, Math.max (1, maxDoc));
+    List<Future<ScoreList>> ranges = new ArrayList<Future<ScoreList>> ();
+
+    //  Each thread evaluates its own copy of the query, and counts the
+    //  postings that it touches and skips.  q itself doesn't move, so
+    //  threads can copy it at the same time.  The calling thread
+    //  evaluates the last range.
+
+    final long[][] counters = new long[n][2];
+
+    for (int i = 0; i < n - 1; i++) {
+      final int part = i;
+      final int first = (int) ((long) maxDoc * i / n);
+      final int end = (int) ((long) maxDoc * (i + 1) / n);
+
+      ranges.add (getPartitionExecutor ().submit (new Callable<ScoreList> () {
+        @Override
+        public ScoreList call () throws IOException {
+          ScoreList range = new ScoreList (maxResults);
+
+          QryIop.resetPostingCounters ();
+          evaluateRange (q.duplicate (), model, range, first, end);
+          counters[part][0] = QryIop.getPostingsTouched ();
+          counters[part][1] = QryIop.getPostingsSkipped ();
+          return range;
+        }
+      }));
+    }
+
+    ScoreList last = new ScoreList (maxResults);
+
+    evaluateRange (q.duplicate (), model, last,
+                   (int) ((long) maxDoc * (n - 1) / n), maxDoc);
+
+    //  Merge the ranges in docid order.
+
+    for (int i = 0; i < ranges.size (); i++) {
+      try {
+        addAll (r, ranges.get (i).get ());
+      } catch (InterruptedException ex) {
+        Thread.currentThread ().interrupt ();
+        throw new InterruptedIOException ("Interrupted while evaluating " + q);
+      } catch (ExecutionException ex) {
+        if (ex.getCause () instanceof IOException) {
+          throw (IOException) ex.getCause ();
+        } else if (ex.getCause () instanceof RuntimeException) {
+          throw (RuntimeException) ex.getCause ();
+        }
+
+        throw new IllegalStateException (ex.getCause ());
+      }
+
+      QryIop.addPostingCounters (counters[i][0], counters[i][1]);
+    }
+
+    addAll (r, last);
+  }
+
+  /**
+   * Score the documents in a range of docids that match a query whose
+   * iterators haven't moved past the range.
+   * @param q The query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param r The score list that the results are added to.
+   * @param first The first docid of the range.
+   * @param end The docid after the range.
+   * @throws IOException Error accessing the index
+   */
+  private static void evaluateRange(Qry q, RetrievalModel model, ScoreList r,
+                                    int first, int end)
+    throws IOException {
+
+    q.docIteratorAdvanceTo (first);
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+
+      if (docid >= end) {
+        break;
+      }
+
+      double score = ((QrySop) q).getScore (model);
+      r.add (docid, score);
+      q.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   * Add every entry of a score list to another score list.
+   */
+  private static void addAll(ScoreList r, ScoreList entries) {
+    for (int i = 0; i < entries.size (); i++) {
+      r.add (entries.getDocid (i), entries.getDocidScore (i));
+    }
+  }
+
+  /**
+   * Get the threads that evaluate docid ranges, creating them the
+   * first time they are needed.  They are daemon threads, so they
+   * don't keep the program running.
+   */
+  private static synchronized ExecutorService getPartitionExecutor () {
+
+    if (partitionExecutor == null) {
+      partitionExecutor = Executors.newFixedThreadPool (
+        queryPartitions - 1, new ThreadFactory () {
+          @Override
+          public Thread newThread (Runnable task) {
+            Thread t = new Thread (task, "query-partition");
+            t.setDaemon (true);
+            return t;
+          }
+        });
+    }
+
+    return partitionExecutor;
+  }
+
+  /**
+   * Evaluate a query exhaustively and check that a pruned evaluation
+   * found the same top results with the same scores.
+   * @param q The query, which is initialized again.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param pruned The results of the pruned evaluation.
+   * @param maxResults The number of results kept.
+   * @throws IOException Error accessing the index
+   * @throws IllegalStateException The results differ.
+   */
+  static void checkPrunedResults(Qry q, RetrievalModel model, ScoreList pruned,
+                                 int maxResults)
+    throws IOException {
+
+    ScoreList exhaustive = new ScoreList (maxResults);
+
+    q.initialize (model);
+    evaluateExhaustive (q, model, exhaustive);
+
+    pruned.sort ();
+    exhaustive.sort ();
+
+    boolean same = (pruned.size () == exhaustive.size ());
+
+    for (int i = 0; same && (i < pruned.size ()); i++) {
+      same = (pruned.getDocid (i) == exhaustive.getDocid (i)) &&
+             (pruned.getDocidScore (i) == exhaustive.getDocidScore (i));
+    }
+
+    if (! same) {
+      throw new IllegalStateException (
+        "Pruned results differ from exhaustive results for " + q);
+    }
+
+    System.out.println ("    pruning check: " + pruned.size () + " results match");
+  }
+
   static LinkedHashMap<Integer, LinkedHashMap<String, Double>> processSVMQuery(String qid, String qString, RetrievalModelLetor model, OutputStreamWriter output) throws Exception {
 
 	LinkedHashMap<Integer, LinkedHashMap<String, Double>> feaMap = model.constructFeatureVector(qid, qString, "test");
@@ -314,21 +839,36 @@ public class QryEval {
 		File documentFile = new File(filename);
 		Scanner scan = new Scanner(documentFile);
 
-        String line = null;
+        //  Read every line first, so that the external ids are
+        //  translated to internal ids in one bulk lookup.
+
+        List<String[]> lines = new ArrayList<String[]>();
+        while (scan.hasNext()) {
+            lines.add(scan.nextLine().split(" "));
+        }
+        scan.close();
+
+        String[] externalIds = new String[lines.size()];
+        for (int i = 0; i < lines.size(); i++) {
+            externalIds[i] = lines.get(i)[2];
+        }
+        int[] docids = Idx.getInternalDocids(externalIds);
+
         String qid_now = "-1";
 		String qid = "";
-        while (scan.hasNext()) {
-            line = scan.nextLine();
-            String[] elements = line.split(" ");
+        for (int i = 0; i < lines.size(); i++) {
+            String[] elements = lines.get(i);
             qid = elements[0];
             if ( !(qid.equals(qid_now)) && !(qid_now.equals("-1"))) {
                 scoreListMap.put(qid_now, scoreList);   
                 scoreList = new ScoreList();
             }  
-            String doc_id = elements[2];
             int rank = Integer.parseInt(elements[3]);
             double score = Double.parseDouble(elements[4]);
-            scoreList.add(Idx.getInternalDocid(doc_id), score);
+            if (docids[i] < 0) {
+                throw new Exception("External id not found.");
+            }
+            scoreList.add(docids[i], score);
             qid_now = qid; 
         }
 		scoreListMap.put(qid_now, scoreList); 
@@ -347,6 +887,43 @@ public class QryEval {
                                RetrievalModel model)
       throws Exception {
 
+    //  Letor and relevance feedback keep state across queries, so they
+    //  always process queries one at a time, and their queries aren't
+    //  known in advance.
+
+    boolean independent =
+      ! (model instanceof RetrievalModelLetor) &&
+      ! ((model instanceof RetrievalModelIndri) &&
+         ((RetrievalModelIndri) model).getFb ());
+
+    if (shareBatchLists && independent) {
+      Idx.setBatchInvLists (planBatch (queryFilePath, model));
+    }
+
+    try {
+      if ((queryThreads > 1) && independent) {
+        processQueryFileParallel (queryFilePath, trecEvalOutputPath, model);
+      } else {
+        processQueryFileSerial (queryFilePath, trecEvalOutputPath, model);
+      }
+    } finally {
+      if (Idx.getBatchInvLists () != null) {
+        System.out.println (Idx.getBatchInvLists ());
+        Idx.setBatchInvLists (null);
+      }
+    }
+  }
+
+  /**
+   *  Process the query file one query at a time.
+   *  @param queryFilePath
+   *  @param model
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static void processQueryFileSerial(String queryFilePath, String trecEvalOutputPath,
+                                     RetrievalModel model)
+      throws Exception {
+
     BufferedReader input = null;
 
     try {
@@ -403,7 +980,8 @@ public class QryEval {
 		if ((model instanceof RetrievalModelIndri) && ( ((RetrievalModelIndri)model).getFb()==true) ) {
 			// get new query.
 			if (((RetrievalModelIndri)model).getFbInitialRankingFile().equals("")) {
-				r = processQuery(query, "body", model);
+				r = processQuery(query, "body", model,
+				    Math.max(MAX_RESULTS, ((RetrievalModelIndri)model).getFbDocs()));
 			} else {
 				r = scoreListMap.get(qid);
 			}
@@ -497,6 +1075,237 @@ public class QryEval {
     }
   }
 
+  /**
+   *  Parse the queries of a query file to find the QryIop subtrees
+   *  that several queries share.  Lines that can't be parsed are
+   *  skipped; they are reported when they are evaluated.
+   *  @param queryFilePath The query file.
+   *  @param model The retrieval model.
+   *  @return The shared lists of the batch.
+   *  @throws IOException Error reading the query file.
+   */
+  private static BatchInvLists planBatch(String queryFilePath,
+                                         RetrievalModel model)
+      throws IOException {
+
+    List<Qry> queries = new ArrayList<Qry> ();
+
+    try (BufferedReader input =
+           new BufferedReader (new FileReader (queryFilePath))) {
+      String qLine;
+
+      while ((qLine = input.readLine ()) != null) {
+        int d = qLine.indexOf (':');
+
+        if (d < 0) {
+          continue;
+        }
+
+        try {
+          Qry q = parseQuery (qLine.substring (d + 1), "body", model);
+
+          if (q != null) {
+            queries.add (q);
+          }
+        } catch (IllegalArgumentException ex) {
+          continue;
+        }
+      }
+    }
+
+    return BatchInvLists.plan (queries);
+  }
+
+  /**
+   *  Process the query file with a pool of worker threads.  Each
+   *  worker parses and evaluates its own query, and its console
+   *  output and results are buffered.  Results are written in the
+   *  order of the query file, so the output is the same as when
+   *  queries are processed one at a time.
+   *  <p>
+   *  The reader keeps a window of queries in flight:  twice the number
+   *  of threads for a pool of platform threads, or one query per
+   *  virtual thread.  When the window is full, it waits for the oldest
+   *  query and writes its results before it reads another one.
+   *  </p>
+   *  @param queryFilePath The query file.
+   *  @param trecEvalOutputPath The results file.
+   *  @param model The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static void processQueryFileParallel(String queryFilePath,
+                                       String trecEvalOutputPath,
+                                       final RetrievalModel model)
+      throws Exception {
+
+    BufferedReader input = null;
+    OutputStreamWriter output = null;
+    ExecutorService executor = newQueryExecutor ();
+    PrintStream console = System.out;
+    QueryOutputStream queryOutput = new QueryOutputStream (console);
+
+    System.setOut (new PrintStream (queryOutput, true));
+
+    try {
+      String qLine = null;
+      int window = virtualThreads ? queryThreads : 2 * queryThreads;
+      ArrayDeque<Future<String[]>> pending = new ArrayDeque<Future<String[]>> ();
+
+      input = new BufferedReader(new FileReader(queryFilePath));
+      output = new OutputStreamWriter(new FileOutputStream(trecEvalOutputPath));
+
+      while ((qLine = input.readLine()) != null) {
+        int d = qLine.indexOf(':');
+
+        if (d < 0) {
+          throw new IllegalArgumentException
+            ("Syntax error:  Missing ':' in query line.");
+        }
+
+        final String line = qLine;
+        final String qid = qLine.substring(0, d);
+        final String query = qLine.substring(d + 1);
+
+        pending.add (executor.submit (new Callable<String[]> () {
+          @Override
+          public String[] call () throws Exception {
+            ByteArrayOutputStream log = new ByteArrayOutputStream ();
+            StringWriter results = new StringWriter ();
+
+            queryOutput.capture (log);
+
+            try {
+              System.out.println("Query " + line);
+
+              ScoreList r = processQuery(query, "body", model);
+
+              if (r != null) {
+                writeResults(qid, r, results);
+                System.out.println();
+              }
+            } finally {
+              queryOutput.capture (null);
+            }
+
+            return new String[] { log.toString (), results.toString () };
+          }
+        }));
+
+        if (pending.size () >= window) {
+          writeQueryOutput (pending.remove (), console, output);
+        }
+      }
+
+      while (! pending.isEmpty ()) {
+        writeQueryOutput (pending.remove (), console, output);
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    } finally {
+      System.setOut (console);
+      executor.shutdownNow ();
+
+      if (input != null)
+        input.close();
+
+      if (output != null)
+        output.close();
+    }
+  }
+
+  /**
+   *  Create the executor that evaluates queries in parallel.  Virtual
+   *  threads need Java 21, so they are created by reflection, and a
+   *  pool of platform threads is used if they aren't available.
+   */
+  private static ExecutorService newQueryExecutor () {
+
+    if (virtualThreads) {
+      try {
+        return (ExecutorService) Executors.class
+          .getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+      } catch (ReflectiveOperationException ex) {
+        System.out.println ("Virtual threads need Java 21; using " +
+                            queryThreads + " platform threads.");
+      }
+    }
+
+    return Executors.newFixedThreadPool (queryThreads);
+  }
+
+  /**
+   *  Wait for a query that is evaluated in parallel, then copy its
+   *  console output to the console and its results to the results
+   *  file.
+   */
+  private static void writeQueryOutput (Future<String[]> query,
+                                        PrintStream console,
+                                        Writer output)
+      throws Exception {
+
+    String[] queryOutput;
+
+    try {
+      queryOutput = query.get ();
+    } catch (ExecutionException ex) {
+      if (ex.getCause () instanceof Exception) {
+        throw (Exception) ex.getCause ();
+      }
+
+      throw ex;
+    }
+
+    printMemoryUsage(false);
+    console.print (queryOutput[0]);
+    output.write (queryOutput[1]);
+    output.flush ();
+  }
+
+  /**
+   *  The console while queries are evaluated in parallel.  Output
+   *  from a thread that is capturing its output goes to that thread's
+   *  buffer, and other output goes to the console, so the output of
+   *  each query can be printed in query order.
+   */
+  private static class QueryOutputStream extends OutputStream {
+
+    private final OutputStream console;
+    private final ThreadLocal<OutputStream> buffers = new ThreadLocal<OutputStream> ();
+
+    QueryOutputStream (OutputStream console) {
+      this.console = console;
+    }
+
+    /**
+     *  Send the current thread's output to a buffer, or back to the
+     *  console if the buffer is null.
+     */
+    void capture (OutputStream buffer) {
+      this.buffers.set (buffer);
+    }
+
+    private OutputStream target () {
+      OutputStream buffer = this.buffers.get ();
+
+      return (buffer != null) ? buffer : this.console;
+    }
+
+    @Override
+    public void write (int b) throws IOException {
+      this.target ().write (b);
+    }
+
+    @Override
+    public void write (byte[] b, int off, int len) throws IOException {
+      this.target ().write (b, off, len);
+    }
+
+    @Override
+    public void flush () throws IOException {
+      this.target ().flush ();
+    }
+  }
+
   /**
    * Print the query results.
    * 
@@ -526,19 +1335,19 @@ public class QryEval {
     if (result.size() < 1) {
       System.out.println("\tNo results.");
     } else {
-      for (int i = 0; i < Math.min(result.size(),100); i++) {
-        System.out.println("\t" + i + ":  " + Idx.getExternalDocid(result.getDocid(i)) + ", "
+      for (int i = 0; i < Math.min(result.size(),MAX_RESULTS); i++) {
+        System.out.println("\t" + i + ":  " + result.getExternalDocid(i) + ", "
             + result.getDocidScore(i));
       }
     }
   }
 
-  static void writeResults(String queryName, ScoreList result, OutputStreamWriter output) throws IOException {
+  static void writeResults(String queryName, ScoreList result, Writer output) throws IOException {
 	result.sort();
  
     if (result.size() >= 1) {
-        for (int i = 0; i < Math.min(100,result.size()); i++) { 
-          output.write(String.format("%s Q0 %s %d %f fubar\n",queryName,Idx.getExternalDocid(result.getDocid(i)),i+1,result.getDocidScore(i)));
+        for (int i = 0; i < Math.min(MAX_RESULTS,result.size()); i++) { 
+          output.write(String.format("%s Q0 %s %d %f fubar\n",queryName,result.getExternalDocid(i),i+1,result.getDocidScore(i)));
       }
     }
 	output.flush();
@@ -53,6 +53,12 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  An identical query operator earlier in the same query, whose
+   *  inverted list this operator shares, or null.
+   */
+  private QryIop listSource = null;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -63,6 +69,38 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  The locations of the document that the docIterator points to,
+   *  decoded from the inverted list on demand.  The array is reused
+   *  from document to document; only the first tf entries are valid.
+   */
+  private int[] locations = null;
+
+  /**
+   *  The docIterator index whose locations are in the locations array.
+   */
+  private int locationsIndex = QryIop.INVALID_ITERATOR_INDEX;
+
+  /**
+   *  Counters for docIterator advances over materialized inverted
+   *  lists, across all QryIop operators created by a thread.  A
+   *  posting is touched when its docid is compared during a search,
+   *  and skipped when the docIterator moves over it without looking
+   *  at it.  Each thread has its own counters ({touched, skipped}) so
+   *  that queries evaluated in parallel count separately, and each
+   *  operator keeps a reference to its thread's counters so that
+   *  advances don't look them up.
+   */
+  private static final ThreadLocal<long[]> POSTING_COUNTERS =
+    new ThreadLocal<long[]> () {
+      @Override
+      protected long[] initialValue () {
+        return new long[2];
+      }
+    };
+
+  private long[] postingCounters = QryIop.POSTING_COUNTERS.get ();
+
 
   /**
    *  Advance the query operator's internal iterator beyond the
@@ -71,27 +109,73 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorFinish ();
+    } else {
+      this.docIteratorAdvanceTo (docid + 1);
     }
-           
-    this.locIteratorIndex = 0;
   }
 
   /**
    *  Advance the query operator's internal iterator to the specified
-   *  document if it exists, or beyond if it doesn't.
+   *  document if it exists, or beyond if it doesn't.  The inverted
+   *  list's docids are an ascending array, so the target is found by
+   *  galloping (exponential) search from the current position followed
+   *  by binary search, which is proportional to the log of the
+   *  distance moved rather than to the distance itself.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    int start = this.docIteratorIndex;
+    int df = this.invertedList.df;
+
     this.locIteratorIndex = 0;
+
+    if (start >= df)
+      return;
+
+    this.postingCounters[0] ++;
+
+    if (this.invertedList.getDocid (start) >= docid)
+      return;
+
+    //  Gallop:  invariant getDocid(lo) < docid.  Stop at the first
+    //  probe that reaches docid or falls off the end of the list.
+
+    int lo = start;
+    int hi = start + 1;
+    int step = 1;
+    int touched = 1;
+
+    while ((hi < df) && (this.invertedList.getDocid (hi) < docid)) {
+      touched ++;
+      lo = hi;
+      step <<= 1;
+      hi = (step < df - start) ? start + step : df;
+    }
+
+    if (hi < df)
+      touched ++;
+
+    //  Binary search:  getDocid(lo) < docid <= getDocid(hi), where
+    //  hi == df means "beyond the end of the list".
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      touched ++;
+
+      if (this.invertedList.getDocid (mid) < docid) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    this.docIteratorIndex = hi;
+
+    this.postingCounters[0] += touched - 1;
+    this.postingCounters[1] += Math.max (0, (hi - start) - touched);
   }
 
   /**
@@ -99,7 +183,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -114,12 +198,20 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the locations for the document that the docIterator points
+   *  to now, or throw an error if the docIterator doesn't point at a
+   *  document.  The array is owned by the query operator and is reused
+   *  when the docIterator moves; only the first getTf() entries are
+   *  valid.
+   *  @return An array of document locations.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int[] docIteratorGetMatchLocations () {
+    if (this.locationsIndex != this.docIteratorIndex) {
+      this.locations =
+        this.invertedList.getPositions (this.docIteratorIndex, this.locations);
+      this.locationsIndex = this.docIteratorIndex;
+    }
+    return this.locations;
   }
 
   /**
@@ -141,10 +233,91 @@ public abstract class QryIop extends Qry {
     return this.invertedList.ctf;
   }
 
+  /**
+   *  Get the largest term frequency (tf) of any document that matches
+   *  this query operator.
+   *  @return The largest term frequency, or -1 if it isn't known.
+   */
+  public int getMaxTf () {
+    return this.invertedList.getMaxTf ();
+  }
+
+  /**
+   *  Get the shortest field length of any document that matches this
+   *  query operator.
+   *  @return The shortest field length, or -1 if it isn't known.
+   */
+  public int getMinFieldLength () {
+    return this.invertedList.getMinFieldLength ();
+  }
+
+  /**
+   *  Get the term frequency (tf) of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf).
+   */
   public int getTf () {
-    return this.invertedList.postings.get(this.docIteratorIndex).tf;
+    return this.invertedList.getTf (this.docIteratorIndex);
+  }
+
+
+  /**
+   *  Add postings that another thread touched and skipped to the
+   *  current thread's counters, for example when parts of a query are
+   *  evaluated by other threads.
+   *  @param touched The number of postings touched.
+   *  @param skipped The number of postings skipped.
+   */
+  public static void addPostingCounters (long touched, long skipped) {
+    long[] counters = QryIop.POSTING_COUNTERS.get ();
+
+    counters[0] += touched;
+    counters[1] += skipped;
   }
 
+  /**
+   *  Give a copy made by duplicate its own iterators, pointing to the
+   *  first posting of the shared inverted list.  The copy counts
+   *  postings for the thread that made it.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  @Override
+  protected void duplicateIterators () throws IOException {
+    this.docIteratorIndex = 0;
+    this.locIteratorIndex = 0;
+    this.locations = null;
+    this.locationsIndex = QryIop.INVALID_ITERATOR_INDEX;
+    this.postingCounters = QryIop.POSTING_COUNTERS.get ();
+  }
+
+  /**
+   *  Get the number of postings that the current thread's docIterator
+   *  searches have compared since the counters were last reset.
+   *  @return The number of postings touched.
+   */
+  public static long getPostingsTouched () {
+    return QryIop.POSTING_COUNTERS.get ()[0];
+  }
+
+  /**
+   *  Get the number of postings that the current thread's
+   *  docIterators moved over without comparing them since the
+   *  counters were last reset.
+   *  @return The number of postings skipped.
+   */
+  public static long getPostingsSkipped () {
+    return QryIop.POSTING_COUNTERS.get ()[1];
+  }
+
+  /**
+   *  Reset the current thread's posting touched and skipped counters.
+   */
+  public static void resetPostingCounters () {
+    long[] counters = QryIop.POSTING_COUNTERS.get ();
+
+    counters[0] = 0;
+    counters[1] = 0;
+  }
 
   /**
    *  Get the document frequency (df) associated with this query
@@ -156,6 +329,34 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the order in which to align initialized arguments on a
+   *  document:  by df, rarest first, so that the argument that leads
+   *  skips the most documents.  Arguments with the same df keep their
+   *  order.
+   *  @param iterators The arguments.
+   *  @return The argument numbers, rarest first.
+   */
+  protected static int[] getRarestFirstOrder (QryIop[] iterators) {
+
+    int n = iterators.length;
+    int[] order = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      int df = iterators[i].getDf ();
+      int j = i;
+
+      while ((j > 0) && (iterators[order[j - 1]].getDf () > df)) {
+        order[j] = order[j - 1];
+        j --;
+      }
+
+      order[j] = i;
+    }
+
+    return order;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -164,6 +365,38 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Indicates whether the operator's lists are stored in the
+   *  persistent proximity list cache (see Idx.getProximityListCache).
+   *  Only operators whose lists are expensive to evaluate from their
+   *  arguments' lists, such as #NEAR/n and #WINDOW/n, are.
+   *  @return True if the operator's lists are cached on disk.
+   */
+  protected boolean isCachedOnDisk () {
+    return false;
+  }
+
+  /**
+   *  Share the inverted list of an identical query operator that is
+   *  initialized earlier in the same query.  This operator keeps its
+   *  own iterators.  If the other operator doesn't have an inverted
+   *  list when this one is initialized (e.g., it streams its
+   *  postings), this operator evaluates its own.
+   *  @param source The identical query operator.
+   */
+  public void setListSource (QryIop source) {
+    this.listSource = source;
+  }
+
+  /**
+   *  Get the identical query operator whose inverted list this one
+   *  shares.
+   *  @return The identical query operator, or null.
+   */
+  public QryIop getListSource () {
+    return this.listSource;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -179,20 +412,94 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    //  If an identical operator earlier in the query was evaluated
+    //  already, or the operator's inverted list is cached, its
+    //  arguments don't need to be initialized or evaluated.
+
+    InvListCache cache = Idx.getInvListCache ();
+    BatchInvLists batchLists = Idx.getBatchInvLists ();
+    ProximityListCache diskCache =
+      this.isCachedOnDisk () ? Idx.getProximityListCache () : null;
+    String key = null;
+    InvList cached = null;
 
-    for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+    if (this.listSource != null) {
+      cached = this.listSource.invertedList;
     }
 
-    //  Evaluate the operator.
-    
-    this.evaluate ();
+    if ((cached == null) &&
+        (cache.isEnabled () || (batchLists != null) || (diskCache != null))) {
+      key = this.getCanonicalString ();
+    }
+
+    //  Another query of the batch may have evaluated the list.  The
+    //  batch is checked first, so that every query that uses the list
+    //  is counted.
+
+    if ((cached == null) && (batchLists != null)) {
+      cached = batchLists.get (key);
+    }
+
+    if ((cached == null) && cache.isEnabled ()) {
+      cached = cache.get (key);
+    }
+
+    //  Lists of operators that are cached on disk may have been
+    //  evaluated in an earlier run.
+
+    if ((cached == null) && (diskCache != null)) {
+      cached = diskCache.get (Idx.getIndexId (), this.field, key);
+
+      if ((cached != null) && cache.isEnabled ()) {
+        cache.put (key, cached);
+      }
+    }
+
+    if (cached != null) {
+      this.invertedList = cached;
+
+      //  The arguments aren't initialized, so the batch lists that
+      //  they would have used can be released.
+
+      if ((batchLists != null) && (this.listSource == null)) {
+        for (Qry q_i: this.args) {
+          batchLists.skip (q_i);
+        }
+      }
+    } else {
+
+      //  Initialize the query arguments (if any).
+
+      for (Qry q_i: this.args) {
+        ((QryIop) q_i).initialize (r);
+      }
+
+      //  Evaluate the operator.
+
+      this.evaluate ();
+
+      if (key != null) {
+        this.invertedList.compact ();
+
+        if (cache.isEnabled ()) {
+          cache.put (key, this.invertedList);
+        }
+
+        if (diskCache != null) {
+          diskCache.put (Idx.getIndexId (), this.field, key, this.invertedList);
+        }
+      }
+    }
+
+    if ((batchLists != null) && (key != null)) {
+      batchLists.put (key, this.invertedList);
+    }
 
     //  Initialize the internal iterators.
 
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+    this.locationsIndex = QryIop.INVALID_ITERATOR_INDEX;
 	/*
     int df = this.invertedList.df;
     this.idf = Math.log10((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
@@ -200,7 +507,7 @@ public abstract class QryIop extends Qry {
 	*/
   }
   
- /**
+  /**
    *  Advance the query operator's internal iterator to the
    *  next location.
    */
@@ -214,22 +521,30 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.getTf ();
+    int[] positions = this.docIteratorGetMatchLocations ();
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (positions[this.locIteratorIndex] <= loc)) {
       locIteratorIndex ++;
     }
   }
 
+  /**
+   *  Reset the query operator's internal iterator to the first
+   *  location of the current document.  Subclasses that manage their
+   *  own docIterator call this when the docIterator moves.
+   */
+  protected void locIteratorReset () {
+    this.locIteratorIndex = 0;
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond
    *  any possible location.
    */
   public void locIteratorFinish () {
-    this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+    this.locIteratorIndex = this.getTf ();
   }
 
   /**
@@ -240,8 +555,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    int[] locations = this.docIteratorGetMatchLocations ();
+    return locations[this.locIteratorIndex];
   }
 
   /**
@@ -250,8 +565,7 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
-    return (this.locIteratorIndex <
-            this.invertedList.getTf (this.docIteratorIndex));
+    return (this.locIteratorIndex < this.getTf ());
   }
 
 }
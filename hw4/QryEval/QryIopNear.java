@@ -5,164 +5,195 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The TERM operator for all retrieval models.  The TERM operator stores
- *  information about a query term, for example "apple" in the query
- *  "#AND (apple pie).  Although it may seem odd to use a query
- *  operator to store a term, doing so makes it easy to build
- *  structured queries with nested query operators.
- *
+ *  The NEAR/n operator for all retrieval models.  A document matches
+ *  if its arguments occur in order, each at most n positions after the
+ *  previous one.  The location of a match is the location of the first
+ *  argument.
+ *  <p>
+ *  Matching works on the primitive location arrays of the arguments.
+ *  The location arrays, term frequencies and location indexes of the
+ *  arguments, and the locations of the matches in the current
+ *  document, are kept in scratch arrays that are allocated once per
+ *  evaluation, so no objects are created per candidate document.
+ *  Documents are aligned starting with the rarest argument, which
+ *  skips the most documents.
+ *  </p>
  */
 public class QryIopNear extends QryIop {
 
-  private int distance; 
+  private int distance;
+
+  /**
+   *  The initial size of the buffer that collects the locations of
+   *  the matches in a document.
+   */
+  private static final int INITIAL_MATCHES = 16;
+
   public QryIopNear(int distance) {
     this.distance = distance;
   }
 
-
-	// for each arg in this.args, get the matching doc_id:
-	// ex. args = a,b,c
-	// TODO	
-	public void initialize(RetrievalModel r) throws IOException { 
-
-		super.initialize(r);
-
-		if (this.args.size() < 2)
-            throw new IllegalArgumentException("Near should have more than one parameters");
-		ArrayList<Integer> doc_ids = new ArrayList<Integer>();
-		for (int i=0; i<this.args.size(); i++) 
-			doc_ids.add( ((QryIop)this.args.get(i)).docIteratorGetMatch());
-
-
-		// while no more operation can be done. 
-		while (true) {
-
-			if (isEqual(doc_ids)) {
-
-				ArrayList<Integer> loc_ids = new ArrayList<Integer>(); 
-				for (int i=0; i<this.args.size(); i++)
-					loc_ids.add(0);
-
-				// check loc in document:
-				// postings: i
-				ArrayList<InvList.DocPosting> posting_candidates = new ArrayList<InvList.DocPosting>(); 
-				ArrayList<Integer> positions = new ArrayList<Integer> (); 
-				for (int i=0; i<this.args.size(); i++) {
-					posting_candidates.add(((QryIop)this.args.get(i)).docIteratorGetMatchPosting());
-				}
-
-				while (true) {
-					boolean meet=true;
-					for (int i=1; i<doc_ids.size(); i++) {
-						int loc1 = posting_candidates.get(i).positions.get(loc_ids.get(i));
-						int loc2 = posting_candidates.get(i-1).positions.get(loc_ids.get(i-1));
-						if ( (loc1-loc2 > this.distance) || (loc2>loc1) ) {
-							meet = false;
-							break;
-						}
-					}	
-
-					boolean toBreak = false;
-					if (meet == true) {
-						positions.add( posting_candidates.get(0).positions.get(loc_ids.get(0)) );
-						for (int i=0; i<loc_ids.size(); i++) {
-							if (loc_ids.get(i)+1 >= posting_candidates.get(i).positions.size() ) {
-								toBreak = true;
-								break; 
-							}
-							loc_ids.set(i,loc_ids.get(i)+1) ;
-						}
-						if ( toBreak == true )
-							break;
-
-					} else {
-						int min_value = posting_candidates.get(0).positions.get(loc_ids.get(0));
-						int min_index = 0;
-						for (int i=1; i<loc_ids.size(); i++) {
-							if ( posting_candidates.get(i).positions.get(loc_ids.get(i))  <= min_value) {
-								min_value = posting_candidates.get(i).positions.get(loc_ids.get(i));
-								min_index = i;
-							}
-						}
-						if (loc_ids.get(min_index)+1 >= posting_candidates.get(min_index).positions.size() ) {
-							toBreak = true;
-							break;
-						}
-						loc_ids.set(min_index,loc_ids.get(min_index)+1);
-					}
-					if (toBreak == true)
-						break;
-				}
-
-				if (positions.size() >= 1) 
-				this.invertedList.appendPosting(doc_ids.get(0), new ArrayList<Integer>(positions));
-
-
-				boolean endOfSet = false;
-				for (int i=0; i<doc_ids.size(); i++) {
-					this.args.get(i).docIteratorAdvancePast(doc_ids.get(i));
-
-					if (!this.args.get(i).docIteratorHasMatch(r)) {
-						endOfSet = true;
-						break;
-					}
-
-					int ID = ((QryIop)this.args.get(i)).docIteratorGetMatch();
-					doc_ids.set(i, ID);
-				}
-
-				if (endOfSet == true)
-					break;
-
-			} else {
-				// doc positions are not equal. The smallest one moves to next doc_id
-				int min_index = 0;
-				int min_value = doc_ids.get(0); 
-				for (int i=0; i<doc_ids.size(); i++) {
-					if (doc_ids.get(i) <= min_value) {
-						min_value = doc_ids.get(i);
-						min_index = i;
-					}
-				}	
-				this.args.get(min_index).docIteratorAdvancePast(doc_ids.get(min_index));
-				if (!this.args.get(min_index).docIteratorHasMatch(r)) {
-					break;
-				}
-				doc_ids.set(min_index, this.args.get(min_index).docIteratorGetMatch());
-			}
-		}
-
-	}
-
-	public boolean isEqual(ArrayList<Integer> doc_ids) {
-		for (int i=0; i<doc_ids.size(); i++) {
-			if ( doc_ids.get(0).equals(doc_ids.get(i)) == false ) {
-				return false;
-			}
-		}
-
-		return true;
-	}
-
-
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-	if (this.args.size() < 2) {
-		throw new IllegalArgumentException("Near Operator Error.");
-	}
-    this.invertedList = new InvList();
+
+    if (this.args.size () < 2)
+      throw new IllegalArgumentException ("Near should have more than one parameters");
+
+    this.invertedList = new InvList (this.field);
+
+    int n = this.args.size ();
+    QryIop[] iterators = new QryIop[n];
+    int[][] locations = new int[n][];
+    int[] tfs = new int[n];
+    int[] locIndexes = new int[n];
+    int[] matches = new int[INITIAL_MATCHES];
+
+    for (int i = 0; i < n; i++) {
+      iterators[i] = (QryIop) this.args.get (i);
+    }
+
+    //  Each pass of the loop moves every argument to docid, rarest
+    //  first.  If one of them passes it, its docid is the next
+    //  candidate.
+
+    int[] order = getRarestFirstOrder (iterators);
+    QryIop lead = iterators[order[0]];
+
+    if (! lead.docIteratorHasMatch (null)) {
+      return;
+    }
+
+    int docid = lead.docIteratorGetMatch ();
+
+    while (true) {
+
+      boolean aligned = true;
+
+      for (int j = 0; j < n; j++) {
+        int i = order[j];
+
+        iterators[i].docIteratorAdvanceTo (docid);
+
+        if (! iterators[i].docIteratorHasMatch (null)) {
+          return;
+        }
+
+        int docid_i = iterators[i].docIteratorGetMatch ();
+
+        if (docid_i > docid) {
+          docid = docid_i;
+          aligned = false;
+        }
+      }
+
+      if (! aligned) {
+        continue;
+      }
+
+      //  Every argument is on docid.  Find the matches.
+
+      for (int i = 0; i < n; i++) {
+        locations[i] = iterators[i].docIteratorGetMatchLocations ();
+        tfs[i] = iterators[i].getTf ();
+        locIndexes[i] = 0;
+      }
+
+      int matchCount = 0;
+
+      while (true) {
+
+        //  Check whether the current locations are in order and
+        //  within distance of each other.  Note the argument with the
+        //  smallest location (the last one, if there are ties).
+
+        boolean meet = true;
+        int minIndex = 0;
+        int minLoc = locations[0][locIndexes[0]];
+        int prevLoc = minLoc;
+
+        for (int i = 1; i < n; i++) {
+          int loc = locations[i][locIndexes[i]];
+
+          if ((loc - prevLoc > this.distance) || (prevLoc > loc)) {
+            meet = false;
+          }
+
+          if (loc <= minLoc) {
+            minLoc = loc;
+            minIndex = i;
+          }
+
+          prevLoc = loc;
+        }
+
+        if (meet) {
+
+          //  Record the match and move every argument past it.
+
+          if (matchCount == matches.length) {
+            matches = Arrays.copyOf (matches, 2 * matches.length);
+          }
+          matches[matchCount++] = locations[0][locIndexes[0]];
+
+          if (! advanceAll (locIndexes, tfs)) {
+            break;
+          }
+        } else {
+
+          //  Move the argument with the smallest location.
+
+          if (locIndexes[minIndex] + 1 >= tfs[minIndex]) {
+            break;
+          }
+          locIndexes[minIndex] ++;
+        }
+      }
+
+      if (matchCount > 0) {
+        this.invertedList.appendPosting (docid, matches, matchCount);
+      }
+
+      lead.docIteratorAdvancePast (docid);
+
+      if (! lead.docIteratorHasMatch (null)) {
+        return;
+      }
+
+      docid = lead.docIteratorGetMatch ();
+    }
+  }
+
+  /**
+   *  Move every argument to its next location.
+   *  @return False if an argument has no more locations.
+   */
+  private static boolean advanceAll (int[] locIndexes, int[] tfs) {
+    for (int i = 0; i < locIndexes.length; i++) {
+      if (locIndexes[i] + 1 >= tfs[i]) {
+        return false;
+      }
+      locIndexes[i] ++;
+    }
+    return true;
+  }
+
+  /**
+   *  Proximity lists are cached on disk when a cache is configured.
+   */
+  @Override
+  protected boolean isCachedOnDisk () {
+    return true;
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
-	// TODO 
-	return ("#near/"+this.distance);
+    return ("#near/"+this.distance);
   }
 }
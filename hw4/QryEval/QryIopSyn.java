@@ -6,6 +6,15 @@ import java.util.*;
 
 /**
  *  The SYN operator for all retrieval models.
+ *  <p>
+ *  The arguments are merged with two heaps.  A heap of arguments
+ *  ordered by current docid finds the next document.  The locations
+ *  of the arguments that match it are merged with a second heap
+ *  ordered by current location, directly into a primitive buffer that
+ *  is appended to the result list.  A location that occurs in more
+ *  than one argument (e.g., #SYN (apple apple)) is stored once.  The
+ *  heaps and buffers are allocated once per evaluation.
+ *  </p>
  */
 public class QryIopSyn extends QryIop {
 
@@ -19,62 +28,170 @@ public class QryIopSyn extends QryIop {
     //  Create an empty inverted list.  If there are no query arguments,
     //  that's the final result.
 
-	System.out.print("syn\n");
-
-    
     this.invertedList = new InvList (this.getField());
 
     if (args.size () == 0) {
       return;
     }
 
+    int n = this.args.size ();
+    QryIop[] iterators = new QryIop[n];
+    int[] docids = new int[n];
+    int[] docHeap = new int[n];
+    int docHeapSize = 0;
+
+    int[][] locations = new int[n][];
+    int[] tfs = new int[n];
+    int[] locIndexes = new int[n];
+    int[] locs = new int[n];
+    int[] locHeap = new int[n];
+    int[] matched = new int[n];
+    int[] positions = new int[16];
+
+    for (int i = 0; i < n; i++) {
+      iterators[i] = (QryIop) this.args.get (i);
+
+      if (iterators[i].docIteratorHasMatch (null)) {
+        docids[i] = iterators[i].docIteratorGetMatch ();
+        docHeap[docHeapSize++] = i;
+      }
+    }
+
+    for (int p = docHeapSize / 2 - 1; p >= 0; p--) {
+      siftDown (docHeap, docHeapSize, docids, p);
+    }
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
-    while (true) {
+    while (docHeapSize > 0) {
+
+      //  Remove the arguments that match the smallest docid from the
+      //  heap, and start their locIterators.
+
+      int minDocid = docids[docHeap[0]];
+      int matchedCount = 0;
+      int locHeapSize = 0;
+      int tf = 0;
+
+      while ((docHeapSize > 0) && (docids[docHeap[0]] == minDocid)) {
+        int i = docHeap[0];
+
+        docHeap[0] = docHeap[--docHeapSize];
+        siftDown (docHeap, docHeapSize, docids, 0);
 
-      //  Find the minimum next document id.  If there is none, we're done.
+        locations[i] = iterators[i].docIteratorGetMatchLocations ();
+        tfs[i] = iterators[i].getTf ();
+        locIndexes[i] = 0;
+        locs[i] = locations[i][0];
+        locHeap[locHeapSize++] = i;
+        matched[matchedCount++] = i;
+        tf += tfs[i];
+      }
+
+      if (tf > positions.length) {
+        positions = new int[Math.max (tf, 2 * positions.length)];
+      }
+
+      //  Merge their locations.
+
+      int count = 0;
+
+      if (locHeapSize == 1) {
+        int i = locHeap[0];
+        System.arraycopy (locations[i], 0, positions, 0, tfs[i]);
+        count = tfs[i];
+      } else {
+        for (int p = locHeapSize / 2 - 1; p >= 0; p--) {
+          siftDown (locHeap, locHeapSize, locs, p);
+        }
 
-      int minDocid = Qry.INVALID_DOCID;
+        while (locHeapSize > 0) {
+          int i = locHeap[0];
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
+          if ((count == 0) || (positions[count - 1] != locs[i])) {
+            positions[count++] = locs[i];
           }
+
+          if (++ locIndexes[i] < tfs[i]) {
+            locs[i] = locations[i][locIndexes[i]];
+          } else {
+            locHeap[0] = locHeap[--locHeapSize];
+          }
+          siftDown (locHeap, locHeapSize, locs, 0);
         }
       }
 
-      if (minDocid == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+      this.invertedList.appendPosting (minDocid, positions, count);
+
+      //  Advance the arguments that matched, and put the ones that
+      //  aren't depleted back in the heap.
+
+      for (int j = 0; j < matchedCount; j++) {
+        int i = matched[j];
+
+        iterators[i].docIteratorAdvancePast (minDocid);
+
+        if (iterators[i].docIteratorHasMatch (null)) {
+          docids[i] = iterators[i].docIteratorGetMatch ();
+          docHeap[docHeapSize] = i;
+          siftUp (docHeap, docHeapSize, docids);
+          docHeapSize ++;
+        }
       }
+    }
+  }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+  /**
+   *  Move the heap entry at position p down to its place.  The heap
+   *  holds argument numbers ordered by keys[argument].
+   */
+  private static void siftDown (int[] heap, int size, int[] keys, int p) {
+    if (p >= size) {
+      return;
     }
-	/*
-    int df = this.invertedList.df;
-    this.idf = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
-    this.avgLength = Idx.getSumOfFieldLengths(this.field) / (double) Idx.getDocCount(this.field);
-	*/
+
+    int entry = heap[p];
+
+    while (true) {
+      int child = 2 * p + 1;
+
+      if (child >= size) {
+        break;
+      }
+
+      if ((child + 1 < size) && (keys[heap[child + 1]] < keys[heap[child]])) {
+        child ++;
+      }
+
+      if (keys[heap[child]] >= keys[entry]) {
+        break;
+      }
+
+      heap[p] = heap[child];
+      p = child;
+    }
+
+    heap[p] = entry;
+  }
+
+  /**
+   *  Move the heap entry at position p up to its place.
+   */
+  private static void siftUp (int[] heap, int p, int[] keys) {
+    int entry = heap[p];
+
+    while (p > 0) {
+      int parent = (p - 1) / 2;
+
+      if (keys[heap[parent]] <= keys[entry]) {
+        break;
+      }
+
+      heap[p] = heap[parent];
+      p = parent;
+    }
+
+    heap[p] = entry;
   }
 }
@@ -4,18 +4,61 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is copied from Lucene into an
+ *  InvList when the operator is initialized.  If lazy postings are
+ *  enabled (setLazyPostings) and the term is the argument of a SCORE
+ *  operator, the docIterator and locIterator instead wrap Lucene's
+ *  postings enumerator directly, so postings are decoded only as
+ *  scoring reaches them.  Terms that are arguments of other QryIop
+ *  operators (e.g., #SYN, #NEAR/n) are always materialized.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  Whether terms that are scored directly iterate over Lucene's
+   *  postings lazily instead of materializing an InvList.
+   */
+  private static boolean lazyPostings = false;
+
   private String term;
 
+  /**
+   *  Whether this term may be streamed from Lucene.  Set by the
+   *  enclosing SCORE operator.
+   */
+  private boolean streamable = false;
+
+  /**
+   *  Lucene's postings when the term is streamed, otherwise null.
+   */
+  private DocsAndPositionsEnum postings = null;
+
+  /**
+   *  The document frequency and collection term frequency of a
+   *  streamed term, which come from Lucene's term statistics.
+   */
+  private int streamDf = 0;
+  private int streamCtf = 0;
+
+  /**
+   *  The locations of the streamed posting that the docIterator
+   *  points to.  Lucene returns positions only once, so they are read
+   *  into this buffer the first time they are requested.
+   */
+  private int[] streamLocations = new int[16];
+  private int streamLocationsDocid = Qry.INVALID_DOCID;
 
   /**
    *  The term is assumed to match the body field.
@@ -37,6 +80,134 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Enable or disable lazy (streamed) postings for terms that are
+   *  scored directly.
+   *  @param lazy True to stream postings from Lucene.
+   */
+  public static void setLazyPostings (boolean lazy) {
+    QryIopTerm.lazyPostings = lazy;
+  }
+
+  /**
+   *  Indicate whether this term may be streamed.  The enclosing query
+   *  operator calls this before initialize if it only needs
+   *  sequential access to the term's postings.
+   *  @param streamable True if the term may be streamed.
+   */
+  public void setStreamable (boolean streamable) {
+    this.streamable = streamable;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.postings == null) {
+      super.docIteratorAdvancePast (docid);
+    } else if (docid == Integer.MAX_VALUE) {
+      this.docIteratorFinish ();
+    } else {
+      this.docIteratorAdvanceTo (docid + 1);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+
+    if (this.postings == null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    //  Lucene's advance requires a target beyond the current document.
+
+    if (this.postings.docID () < docid) {
+      try {
+        this.postings.advance (docid);
+      } catch (IOException ex) {
+        throw new IllegalStateException ("Error reading postings for " + this, ex);
+      }
+    }
+
+    this.locIteratorReset ();
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.postings == null) {
+      super.docIteratorFinish ();
+    } else {
+      this.docIteratorAdvanceTo (DocIdSetIterator.NO_MORE_DOCS);
+    }
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.postings == null) {
+      return super.docIteratorGetMatch ();
+    }
+    return this.postings.docID ();
+  }
+
+  /**
+   *  Return the locations for the document that the docIterator points
+   *  to now.  The array is reused when the docIterator moves; only the
+   *  first getTf() entries are valid.
+   *  @return An array of document locations.
+   */
+  public int[] docIteratorGetMatchLocations () {
+
+    if (this.postings == null) {
+      return super.docIteratorGetMatchLocations ();
+    }
+
+    int docid = this.postings.docID ();
+
+    if (this.streamLocationsDocid != docid) {
+      try {
+        int tf = this.postings.freq ();
+
+        if (this.streamLocations.length < tf)
+          this.streamLocations =
+            new int[Math.max (tf, 2 * this.streamLocations.length)];
+
+        for (int i = 0; i < tf; i++)
+          this.streamLocations[i] = this.postings.nextPosition ();
+      } catch (IOException ex) {
+        throw new IllegalStateException ("Error reading postings for " + this, ex);
+      }
+      this.streamLocationsDocid = docid;
+    }
+
+    return this.streamLocations;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.postings == null) {
+      return super.docIteratorHasMatch (r);
+    }
+    return (this.postings.docID () != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -47,7 +218,164 @@ public class QryIopTerm extends QryIop {
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    if (this.postings == null) {
+      return super.getCtf ();
+    }
+    return this.streamCtf;
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    if (this.postings == null) {
+      return super.getDf ();
+    }
+    return this.streamDf;
+  }
+
+  /**
+   *  Get the largest term frequency (tf) of any document that matches
+   *  this query operator.  It isn't known for streamed terms.
+   *  @return The largest term frequency, or -1 if it isn't known.
+   */
+  public int getMaxTf () {
+    if (this.postings == null) {
+      return super.getMaxTf ();
+    }
+    return -1;
+  }
+
+  /**
+   *  Get the shortest field length of any document that matches this
+   *  query operator.  It isn't known for streamed terms.
+   *  @return The shortest field length, or -1 if it isn't known.
+   */
+  public int getMinFieldLength () {
+    if (this.postings == null) {
+      return super.getMinFieldLength ();
+    }
+    return -1;
+  }
+
+  /**
+   *  Get the term frequency (tf) of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf).
+   */
+  public int getTf () {
+    if (this.postings == null) {
+      return super.getTf ();
+    }
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings for " + this, ex);
+    }
+  }
+
+  /**
+   *  Initialize the query operator, including its internal iterators.
+   *  Streamed terms open Lucene's postings enumerator; other terms
+   *  materialize an inverted list.  Lucene's df and ctf statistics
+   *  include deleted documents, so terms are only streamed from
+   *  indexes that have no deletions.  A cached inverted list is
+   *  cheaper than streaming, so terms aren't streamed when the
+   *  inverted list cache is enabled, or when other queries of the
+   *  batch share the term's list (see BatchInvLists); the shared list
+   *  must be evaluated, counted, and released like any other.
+   *  @param r A retrieval model (that is ignored)
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r) throws IOException {
+
+    this.postings = null;
+
+    BatchInvLists batchLists = Idx.getBatchInvLists ();
+
+    if (! (QryIopTerm.lazyPostings && this.streamable) ||
+        Idx.INDEXREADER.hasDeletions () ||
+        Idx.getInvListCache ().isEnabled () ||
+        ((batchLists != null) &&
+         batchLists.isShared (this.getCanonicalString ()))) {
+      super.initialize (r);
+      return;
+    }
+
+    Term t = new Term (this.field, new BytesRef (this.term));
+
+    this.streamDf = Idx.INDEXREADER.docFreq (t);
+    this.streamCtf = (int) Idx.INDEXREADER.totalTermFreq (t);
+
+    if (this.streamDf > 0) {
+      this.openPostings ();
+    }
+
+    if (this.postings == null) {	// Unknown term.  Use an empty list.
+      super.initialize (r);
+      return;
+    }
+  }
+
+  /**
+   *  Give a copy made by duplicate its own iterators.  A streamed term
+   *  opens its own Lucene postings enumerator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  @Override
+  protected void duplicateIterators () throws IOException {
+    super.duplicateIterators ();
+
+    this.streamLocations = new int[16];
+
+    if (this.postings != null) {
+      this.openPostings ();
+    }
+  }
+
+  /**
+   *  Open Lucene's postings enumerator for a streamed term, and move it
+   *  to the first document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void openPostings () throws IOException {
+    this.postings =
+      MultiFields.getTermPositionsEnum (Idx.INDEXREADER,
+                                        MultiFields.getLiveDocs (Idx.INDEXREADER),
+                                        this.field, new BytesRef (this.term));
+    this.streamLocationsDocid = Qry.INVALID_DOCID;
+
+    if (this.postings != null) {
+      this.postings.nextDoc ();
+      this.locIteratorReset ();
+    }
+  }
+
+  /**
+   *  Get the canonical string of this query operator.
+   *  @return The canonical string of this query operator.
+   */
+  public String getCanonicalString () {
+    return this.toString ();
+  }
+
+  /**
+   *  Get the term.
+   *  @return The term.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
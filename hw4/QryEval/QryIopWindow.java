@@ -5,170 +5,238 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The TERM operator for all retrieval models.  The TERM operator stores
- *  information about a query term, for example "apple" in the query
- *  "#AND (apple pie).  Although it may seem odd to use a query
- *  operator to store a term, doing so makes it easy to build
- *  structured queries with nested query operators.
- *
+ *  The WINDOW/n operator for all retrieval models.  A document matches
+ *  if its arguments occur in any order within a window of n positions,
+ *  i.e., the largest location minus the smallest location is less than
+ *  n.  The location of a match is the location of the first argument.
+ *  <p>
+ *  Within a document, the current locations of the arguments are kept
+ *  in a min-heap ordered by location, and the largest location is
+ *  tracked separately.  Locations only grow, so moving the argument
+ *  with the smallest location is a heap update and a comparison with
+ *  the largest location: O(log k) per step for k arguments, instead of
+ *  comparing every pair of arguments.  After a match every argument
+ *  moves, and the heap is rebuilt in O(k).  The heap and the other
+ *  scratch arrays are allocated once per evaluation.  Documents are
+ *  aligned starting with the rarest argument.
+ *  </p>
  */
 public class QryIopWindow extends QryIop {
 
-  private int distance; 
+  private int distance;
+
+  /**
+   *  The initial size of the buffer that collects the locations of
+   *  the matches in a document.
+   */
+  private static final int INITIAL_MATCHES = 16;
+
   public QryIopWindow(int distance) {
     this.distance = distance;
   }
 
-
-	// for each arg in this.args, get the matching doc_id:
-	// ex. args = a,b,c
-	// TODO	
-	public void initialize(RetrievalModel r) throws IOException { 
-
-		super.initialize(r);
-
-		if (this.args.size() < 2)
-            throw new IllegalArgumentException("Window should have more than one parameters");
-		ArrayList<Integer> doc_ids = new ArrayList<Integer>();
-		for (int i=0; i<this.args.size(); i++) 
-			doc_ids.add( ((QryIop)this.args.get(i)).docIteratorGetMatch());
-
-
-		// while no more operation can be done. 
-		while (true) {
-
-			if (isEqual(doc_ids)) {
-
-				ArrayList<Integer> loc_ids = new ArrayList<Integer>(); 
-				for (int i=0; i<this.args.size(); i++)
-					loc_ids.add(0);
-
-				// check loc in document:
-				// postings: i
-				ArrayList<InvList.DocPosting> posting_candidates = new ArrayList<InvList.DocPosting>(); 
-				ArrayList<Integer> positions = new ArrayList<Integer> (); 
-				for (int i=0; i<this.args.size(); i++) {
-					posting_candidates.add(((QryIop)this.args.get(i)).docIteratorGetMatchPosting());
-				}
-
-				while (true) {
-					boolean meet=true;
-					for (int i=0; i<doc_ids.size(); i++) {
-						for (int j=0; j<doc_ids.size(); j++) {
-							if (i==j) {
-								continue;
-							}
-
-							int loc1 = posting_candidates.get(i).positions.get(loc_ids.get(i));
-							int loc2 = posting_candidates.get(j).positions.get(loc_ids.get(j));
-							if ( (Math.abs(loc1-loc2) >= this.distance) ) {
-								meet = false;
-								break;
-							}
-						}
-					}	
-
-					boolean toBreak = false;
-					if (meet == true) {
-						positions.add( posting_candidates.get(0).positions.get(loc_ids.get(0)) );
-						for (int i=0; i<loc_ids.size(); i++) {
-							if (loc_ids.get(i)+1 >= posting_candidates.get(i).positions.size() ) {
-								toBreak = true;
-								break; 
-							}
-							loc_ids.set(i,loc_ids.get(i)+1) ;
-						}
-						if ( toBreak == true )
-							break;
-
-					} else {
-						int min_value = posting_candidates.get(0).positions.get(loc_ids.get(0));
-						int min_index = 0;
-						for (int i=1; i<loc_ids.size(); i++) {
-							if ( posting_candidates.get(i).positions.get(loc_ids.get(i))  <= min_value) {
-								min_value = posting_candidates.get(i).positions.get(loc_ids.get(i));
-								min_index = i;
-							}
-						}
-						if (loc_ids.get(min_index)+1 >= posting_candidates.get(min_index).positions.size() ) {
-							toBreak = true;
-							break;
-						}
-						loc_ids.set(min_index,loc_ids.get(min_index)+1);
-					}
-					if (toBreak == true)
-						break;
-				}
-
-				if (positions.size() >= 1) 
-				this.invertedList.appendPosting(doc_ids.get(0), new ArrayList<Integer>(positions));
-
-
-				boolean endOfSet = false;
-				for (int i=0; i<doc_ids.size(); i++) {
-					this.args.get(i).docIteratorAdvancePast(doc_ids.get(i));
-
-					if (!this.args.get(i).docIteratorHasMatch(r)) {
-						endOfSet = true;
-						break;
-					}
-
-					int ID = ((QryIop)this.args.get(i)).docIteratorGetMatch();
-					doc_ids.set(i, ID);
-				}
-
-				if (endOfSet == true)
-					break;
-
-			} else {
-				// doc positions are not equal. The smallest one moves to next doc_id
-				int min_index = 0;
-				int min_value = doc_ids.get(0); 
-				for (int i=0; i<doc_ids.size(); i++) {
-					if (doc_ids.get(i) <= min_value) {
-						min_value = doc_ids.get(i);
-						min_index = i;
-					}
-				}	
-				this.args.get(min_index).docIteratorAdvancePast(doc_ids.get(min_index));
-				if (!this.args.get(min_index).docIteratorHasMatch(r)) {
-					break;
-				}
-				doc_ids.set(min_index, this.args.get(min_index).docIteratorGetMatch());
-			}
-		}
-
-	}
-
-	public boolean isEqual(ArrayList<Integer> doc_ids) {
-		for (int i=0; i<doc_ids.size(); i++) {
-			if ( doc_ids.get(0).equals(doc_ids.get(i)) == false ) {
-				return false;
-			}
-		}
-
-		return true;
-	}
-
-
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-	if (this.args.size() < 2) {
-		throw new IllegalArgumentException("Window Operator Error.");
-	}
-    this.invertedList = new InvList();
+
+    if (this.args.size () < 2)
+      throw new IllegalArgumentException ("Window should have more than one parameters");
+
+    this.invertedList = new InvList (this.field);
+
+    int n = this.args.size ();
+    QryIop[] iterators = new QryIop[n];
+    int[][] locations = new int[n][];
+    int[] tfs = new int[n];
+    int[] locIndexes = new int[n];
+    int[] locs = new int[n];
+    int[] heap = new int[n];
+    int[] matches = new int[INITIAL_MATCHES];
+
+    for (int i = 0; i < n; i++) {
+      iterators[i] = (QryIop) this.args.get (i);
+    }
+
+    //  Each pass of the loop moves every argument to docid, rarest
+    //  first.  If one of them passes it, its docid is the next
+    //  candidate.
+
+    int[] order = getRarestFirstOrder (iterators);
+    QryIop lead = iterators[order[0]];
+
+    if (! lead.docIteratorHasMatch (null)) {
+      return;
+    }
+
+    int docid = lead.docIteratorGetMatch ();
+
+    while (true) {
+
+      boolean aligned = true;
+
+      for (int j = 0; j < n; j++) {
+        int i = order[j];
+
+        iterators[i].docIteratorAdvanceTo (docid);
+
+        if (! iterators[i].docIteratorHasMatch (null)) {
+          return;
+        }
+
+        int docid_i = iterators[i].docIteratorGetMatch ();
+
+        if (docid_i > docid) {
+          docid = docid_i;
+          aligned = false;
+        }
+      }
+
+      if (! aligned) {
+        continue;
+      }
+
+      //  Every argument is on docid.  Find the matches.
+
+      for (int i = 0; i < n; i++) {
+        locations[i] = iterators[i].docIteratorGetMatchLocations ();
+        tfs[i] = iterators[i].getTf ();
+        locIndexes[i] = 0;
+        locs[i] = locations[i][0];
+      }
+
+      int maxLoc = buildHeap (heap, locs);
+      int matchCount = 0;
+
+      while (true) {
+
+        if (maxLoc - locs[heap[0]] < this.distance) {
+
+          //  Record the match and move every argument past it.
+
+          if (matchCount == matches.length) {
+            matches = Arrays.copyOf (matches, 2 * matches.length);
+          }
+          matches[matchCount++] = locs[0];
+
+          boolean depleted = false;
+
+          for (int i = 0; i < n; i++) {
+            if (locIndexes[i] + 1 >= tfs[i]) {
+              depleted = true;
+              break;
+            }
+            locIndexes[i] ++;
+            locs[i] = locations[i][locIndexes[i]];
+          }
+
+          if (depleted) {
+            break;
+          }
+
+          maxLoc = buildHeap (heap, locs);
+        } else {
+
+          //  Move the argument with the smallest location.
+
+          int min = heap[0];
+
+          if (locIndexes[min] + 1 >= tfs[min]) {
+            break;
+          }
+          locIndexes[min] ++;
+          locs[min] = locations[min][locIndexes[min]];
+          maxLoc = Math.max (maxLoc, locs[min]);
+          siftDown (heap, locs, 0);
+        }
+      }
+
+      if (matchCount > 0) {
+        this.invertedList.appendPosting (docid, matches, matchCount);
+      }
+
+      lead.docIteratorAdvancePast (docid);
+
+      if (! lead.docIteratorHasMatch (null)) {
+        return;
+      }
+
+      docid = lead.docIteratorGetMatch ();
+    }
+  }
+
+  /**
+   *  Build a heap of argument numbers ordered by location.
+   *  @return The largest location.
+   */
+  private static int buildHeap (int[] heap, int[] locs) {
+    int maxLoc = Integer.MIN_VALUE;
+
+    for (int i = 0; i < heap.length; i++) {
+      heap[i] = i;
+      maxLoc = Math.max (maxLoc, locs[i]);
+    }
+
+    for (int i = heap.length / 2 - 1; i >= 0; i--) {
+      siftDown (heap, locs, i);
+    }
+
+    return maxLoc;
+  }
+
+  /**
+   *  Indicates whether argument i is before argument j in the heap.
+   *  Among arguments with the same location the last one is moved
+   *  first, as in the original pairwise matcher.
+   */
+  private static boolean before (int[] locs, int i, int j) {
+    return (locs[i] < locs[j]) || ((locs[i] == locs[j]) && (i > j));
+  }
+
+  /**
+   *  Move the heap entry at position p down to its place.
+   */
+  private static void siftDown (int[] heap, int[] locs, int p) {
+    int n = heap.length;
+    int entry = heap[p];
+
+    while (true) {
+      int child = 2 * p + 1;
+
+      if (child >= n) {
+        break;
+      }
+
+      if ((child + 1 < n) && before (locs, heap[child + 1], heap[child])) {
+        child ++;
+      }
+
+      if (! before (locs, heap[child], entry)) {
+        break;
+      }
+
+      heap[p] = heap[child];
+      p = child;
+    }
+
+    heap[p] = entry;
+  }
+
+  /**
+   *  Proximity lists are cached on disk when a cache is configured.
+   */
+  @Override
+  protected boolean isCachedOnDisk () {
+    return true;
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
-	// TODO 
-	return ("#window/"+this.distance);
+    return ("#window/"+this.distance);
   }
 }
@@ -39,6 +39,11 @@ public class QryParser {
 
   //  --------------- Constants and variables ---------------------
 
+  /**
+   *  The analyzer is configured once, when the class is initialized.
+   *  tokenizeString builds a new token stream for each call, so
+   *  threads that parse queries at the same time can share it.
+   */
   private static final EnglishAnalyzerConfigurable ANALYZER =
     new EnglishAnalyzerConfigurable(Version.LUCENE_43);
 
@@ -195,6 +200,67 @@ public class QryParser {
   }
 
 
+  /**
+   *  Replace arguments that are the same kind of operator as q with
+   *  their arguments, e.g., #SYN (a #SYN (b c)) becomes #SYN (a b c),
+   *  and drop arguments that are identical to an earlier argument.
+   *  @param q A query operator whose arguments are optimized.
+   *  @param flatten False to only drop duplicate arguments.
+   */
+  private static void flattenAndDedupe (Qry q, boolean flatten) {
+
+    ArrayList<Qry> args = new ArrayList<Qry> (q.args.size ());
+
+    for (Qry q_i : q.args) {
+      if (flatten && (q_i.getClass () == q.getClass ())) {
+        args.addAll (q_i.args);
+      } else {
+        args.add (q_i);
+      }
+    }
+
+    Set<String> seen = new HashSet<String> ();
+
+    q.args.clear ();
+
+    for (Qry q_i : args) {
+      if (seen.add (q_i.getCanonicalString ())) {
+        q.args.add (q_i);
+      }
+    }
+  }
+
+  /**
+   *  Find QryIop subtrees that are identical to a subtree earlier in
+   *  the query, e.g., the terms a and b of #WAND (0.7 #AND (a b) 0.3
+   *  #AND (a b c)), and make them share its inverted list (see
+   *  QryIop.setListSource).  Subtrees are visited in the order that
+   *  they are initialized, so the earlier subtree is always evaluated
+   *  first.  The arguments of a shared subtree are never initialized,
+   *  so they aren't visited.
+   *  @param q A query tree.
+   *  @param seen The first subtree with each canonical string.
+   */
+  private static void shareSubexpressions (Qry q, Map<String,QryIop> seen) {
+
+    if (q instanceof QryIop) {
+      QryIop q_iop = (QryIop) q;
+      String key = q_iop.getCanonicalString ();
+      QryIop source = seen.get (key);
+
+      if (source != null) {
+        q_iop.setListSource (source);
+        return;
+      }
+
+      seen.put (key, q_iop);
+    }
+
+    for (Qry q_i : q.args) {
+      shareSubexpressions (q_i, seen);
+    }
+  }
+
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style
@@ -205,11 +271,50 @@ public class QryParser {
    */
   public static Qry getQuery (String queryString, String defaultField)
       throws IOException, IllegalArgumentException {
+    return getQuery (queryString, defaultField, null);
+  }
+
+  /**
+   *  Parse a query string into a query tree that is optimized for a
+   *  retrieval model (see optimizeQuery).
+   *  @param queryString The query string, in an Indri-style
+   *  query language.
+   *  @param model The retrieval model, or null if it isn't known.
+   *  @return Qry The query tree for the parsed query.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
+   */
+  public static Qry getQuery (String queryString, String defaultField,
+                              RetrievalModel model)
+      throws IOException, IllegalArgumentException {
 
 	// sshaing: if there is no operator in the input string , use OR as default
 
     Qry q = parseString (queryString, defaultField);		// An exact parse
-    q = optimizeQuery (q);			// An optimized parse
+    QryPlan plan = (model == null) ? null : new QryPlan (model);
+
+    q = optimizeQuery (q, model, plan);
+
+    //  RankedBoolean scores an #AND or #OR argument only while the
+    //  argument's first argument has matches, so nested operators keep
+    //  their shape and argument order.  Nothing gates the score of the
+    //  top-level operator, so its duplicate arguments can be dropped
+    //  and its arguments sorted.  Duplicates score the same, and the
+    //  first argument is always kept.
+
+    if ((model instanceof RetrievalModelRankedBoolean) &&
+        ((q instanceof QrySopAnd) || (q instanceof QrySopOr))) {
+      flattenAndDedupe (q, false);
+
+      if ((q instanceof QrySopAnd) && (plan != null)) {
+        sortRarestFirst (q, plan);
+      }
+    }
+
+    if (q != null) {
+      shareSubexpressions (q, new HashMap<String,QryIop> ());
+    }
+
     return q;
   }
 
@@ -244,8 +349,25 @@ public class QryParser {
    *  '#NEAR/1 ()' after stopwords are removed; and unnecessary nodes
    *  or subtrees, such as #AND (#AND (a)), which can be replaced by
    *  'a'.
+   *  <p>
+   *  Operators are also rewritten where the rewrite can't change
+   *  matches or scores.  #SYN arguments that are #SYN operators are
+   *  flattened and duplicate arguments are dropped, because #SYN
+   *  merges locations.  UnrankedBoolean scores every match 1, so the
+   *  same is done for #AND and #OR, and #AND arguments are sorted by
+   *  estimated df, rarest first, so that the rarest argument leads
+   *  docIteratorHasMatchAll.  RankedBoolean only scores a nested
+   *  #AND or #OR while its first argument has matches, so only its
+   *  top-level operator is rewritten (see getQuery).  Scores of the
+   *  other models depend on the shape of the query and the order of
+   *  their arguments, so their operators are not rewritten.
+   *  </p>
+   *  @param q The query.
+   *  @param model The retrieval model, or null if it isn't known.
+   *  @param plan The estimates of the query operators, or null.
    */
-  private static Qry optimizeQuery(Qry q) {
+  private static Qry optimizeQuery(Qry q, RetrievalModel model, QryPlan plan)
+      throws IOException {
 
     //  Term operators don't benefit from optimization.
 
@@ -260,7 +382,7 @@ public class QryParser {
     for (int i = q.args.size() - 1; i >= 0; i--) {
 
       Qry q_i_before = q.args.get(i);
-      Qry q_i_after = optimizeQuery (q_i_before);
+      Qry q_i_after = optimizeQuery (q_i_before, model, plan);
 
       if (q_i_after == null) {
         q.removeArg(i);			// optimization deleted the arg
@@ -277,6 +399,16 @@ public class QryParser {
       return null;
     }
 
+    if ((q instanceof QryIopSyn) ||
+        ((model instanceof RetrievalModelUnrankedBoolean) &&
+         ((q instanceof QrySopAnd) || (q instanceof QrySopOr)))) {
+      flattenAndDedupe (q, true);
+
+      if ((q instanceof QrySopAnd) && (plan != null)) {
+        sortRarestFirst (q, plan);
+      }
+    }
+
     //  Only SCORE operators can have a single argument.  Other
     //  query operators that have just one argument are deleted.
 
@@ -289,7 +421,6 @@ public class QryParser {
 
   }
 
-
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style query
@@ -449,7 +580,30 @@ public class QryParser {
     return new PopData<String,String>(substrings[0], argString);
   }
 
-    
+  /**
+   *  Sort the arguments of a query operator by estimated df, rarest
+   *  first.  Arguments with the same df keep their order.
+   *  @param q A query operator whose arguments are optimized.
+   *  @param plan The estimates of the query operators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void sortRarestFirst (Qry q, final QryPlan plan)
+      throws IOException {
+
+    final Map<Qry,Long> dfs = new IdentityHashMap<Qry,Long> ();
+
+    for (Qry q_i : q.args) {
+      dfs.put (q_i, plan.getDf (q_i));
+    }
+
+    Collections.sort (q.args, new Comparator<Qry> () {
+      @Override
+      public int compare (Qry q1, Qry q2) {
+        return Long.compare (dfs.get (q1), dfs.get (q2));
+      }
+    });
+  }
+
   /**
    *  Throw an error specialized for query parsing syntax errors.
    *  @param errorString The string "Syntax
@@ -0,0 +1,256 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A cost-based plan for evaluating a query.  The plan estimates, from
+ *  the index's document frequencies, how many documents each query
+ *  operator matches and how many postings evaluating it touches, and
+ *  chooses between document-at-a-time (DAAT) and term-at-a-time (TAAT)
+ *  evaluation.  QryParser.optimizeQuery uses the estimates to put the
+ *  rarest arguments of conjunctive operators first, and explain prints
+ *  the plan.
+ *  <p>
+ *  Costs are in postings.  Reading an inverted list costs its df.  A
+ *  conjunction (e.g., #NEAR/n, or #AND in the Boolean models) matches
+ *  at most as many documents as its rarest argument; its first
+ *  argument leads, and every document of the leader is probed in the
+ *  other k-1 arguments.  A disjunction (e.g., #OR, #SUM, or #AND in
+ *  Indri) matches at most the sum of its arguments' dfs, and every
+ *  candidate document checks all k arguments.  TAAT reads each list
+ *  once into an accumulator and then collects the candidates, so it
+ *  is cheaper for disjunctions of many arguments.  TAAT is chosen
+ *  only for queries that TaatEvaluator can evaluate.
+ *  </p>
+ */
+public class QryPlan {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Query evaluation strategies.
+   */
+  public static enum Strategy { DAAT, TAAT };
+
+  /**
+   *  The estimated number of matching documents and cost of a query
+   *  operator.
+   */
+  private static class Estimate {
+    long df;
+    double cost;
+  }
+
+  private RetrievalModel model;
+  private long numDocs;
+
+  /**
+   *  The estimates of the query operators, which are computed when
+   *  they are first needed.
+   */
+  private IdentityHashMap<Qry,Estimate> estimates =
+    new IdentityHashMap<Qry,Estimate> ();
+
+  private Qry query = null;
+  private Strategy strategy = Strategy.DAAT;
+  private double daatCost = 0;
+  private double taatCost = Double.POSITIVE_INFINITY;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.  The estimates of an operator assume that its
+   *  arguments don't change after they are first estimated.
+   *  @param model The retrieval model, which determines how operators
+   *  match.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QryPlan (RetrievalModel model) throws IOException {
+    this.model = model;
+    this.numDocs = Idx.getNumDocs ();
+  }
+
+  /**
+   *  Plan the evaluation of an optimized query.
+   *  @param q The query.
+   *  @param model The retrieval model.
+   *  @return The plan.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static QryPlan create (Qry q, RetrievalModel model)
+    throws IOException {
+
+    QryPlan plan = new QryPlan (model);
+
+    plan.query = q;
+    plan.daatCost = plan.getCost (q);
+
+    if (plan.isTaatEligible (q)) {
+      double cost = 0;
+
+      for (Qry q_i : q.args) {
+        cost += plan.getCost (q_i) + plan.getDf (q_i);
+      }
+
+      plan.taatCost = cost + plan.getDf (q);
+
+      if (plan.taatCost < plan.daatCost) {
+        plan.strategy = Strategy.TAAT;
+      }
+    }
+
+    return plan;
+  }
+
+  /**
+   *  Estimate a query operator.
+   */
+  private Estimate estimate (Qry q) throws IOException {
+
+    Estimate e = this.estimates.get (q);
+
+    if (e != null) {
+      return e;
+    }
+
+    e = new Estimate ();
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm t = (QryIopTerm) q;
+
+      e.df = Idx.getDocFreq (t.getField (), t.getTerm ());
+      e.cost = e.df;
+    } else if ((q instanceof QrySopScore) || (q.args.size () == 0)) {
+      for (Qry q_i : q.args) {
+        Estimate e_i = this.estimate (q_i);
+        e.df = e_i.df;
+        e.cost = e_i.cost;
+      }
+    } else {
+      long minDf = Long.MAX_VALUE;
+      long sumDf = 0;
+      double cost = 0;
+
+      for (Qry q_i : q.args) {
+        Estimate e_i = this.estimate (q_i);
+        minDf = Math.min (minDf, e_i.df);
+        sumDf += e_i.df;
+        cost += e_i.cost;
+      }
+
+      int k = q.args.size ();
+
+      if (q instanceof QryIopSyn) {
+        e.df = Math.min (this.numDocs, sumDf);
+        e.cost = cost + sumDf;
+      } else if (this.isConjunction (q)) {
+        e.df = minDf;
+        e.cost = cost + (k - 1) * this.estimate (q.args.get (0)).df;
+      } else {
+        e.df = Math.min (this.numDocs, sumDf);
+        e.cost = cost + k * e.df;
+      }
+    }
+
+    this.estimates.put (q, e);
+    return e;
+  }
+
+  /**
+   *  Get a string that describes the plan:  the strategy, the
+   *  estimated costs, and each operator's estimated df and cost.
+   *  @return The description of the plan.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String explain () throws IOException {
+
+    StringBuilder s = new StringBuilder ();
+
+    s.append (String.format ("    plan:  %s (DAAT cost %.0f, TAAT cost %s)%n",
+                             this.strategy, this.daatCost,
+                             (this.taatCost == Double.POSITIVE_INFINITY) ?
+                               "n/a" : String.format ("%.0f", this.taatCost)));
+    this.explain (this.query, 3, s);
+    return s.toString ();
+  }
+
+  private void explain (Qry q, int depth, StringBuilder s) throws IOException {
+
+    for (int i = 0; i < depth; i++) {
+      s.append ("  ");
+    }
+
+    String name = (q instanceof QryIop) ? q.toString () : q.getDisplayName ();
+
+    s.append (String.format ("%s  df %d  cost %.0f%s%n",
+                             name, this.getDf (q), this.getCost (q),
+                             this.isConjunction (q) ? "  (conjunction)" : ""));
+
+    if (! (q instanceof QryIopTerm)) {
+      for (Qry q_i : q.args) {
+        this.explain (q_i, depth + 1, s);
+      }
+    }
+  }
+
+  /**
+   *  Get the estimated number of postings that evaluating a query
+   *  operator touches.
+   *  @param q The query operator.
+   *  @return The estimated cost.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getCost (Qry q) throws IOException {
+    return this.estimate (q).cost;
+  }
+
+  /**
+   *  Get an upper bound on the number of documents that a query
+   *  operator matches.
+   *  @param q The query operator.
+   *  @return The estimated df.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getDf (Qry q) throws IOException {
+    return this.estimate (q).df;
+  }
+
+  /**
+   *  Get the estimated cost of the chosen strategy.
+   *  @return The estimated cost.
+   */
+  public double getEstimatedCost () {
+    return (this.strategy == Strategy.TAAT) ? this.taatCost : this.daatCost;
+  }
+
+  /**
+   *  Get the evaluation strategy that the plan chose.
+   *  @return The strategy.
+   */
+  public Strategy getStrategy () {
+    return this.strategy;
+  }
+
+  /**
+   *  Indicates whether a query operator matches only documents that
+   *  all of its arguments match.
+   *  @param q The query operator.
+   *  @return True if the operator is a conjunction.
+   */
+  public boolean isConjunction (Qry q) {
+    return (((q instanceof QryIop) &&
+             ! (q instanceof QryIopSyn) && ! (q instanceof QryIopTerm)) ||
+            ((q instanceof QrySopAnd) &&
+             ! (this.model instanceof RetrievalModelIndri)));
+  }
+
+  /**
+   *  Indicates whether a query can be evaluated term-at-a-time.
+   */
+  private boolean isTaatEligible (Qry q) {
+    return ((q.args.size () > 1) && TaatEvaluator.canEvaluate (q, this.model));
+  }
+}
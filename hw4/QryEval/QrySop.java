@@ -14,24 +14,214 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  Computes an operator's scores for the retrieval model that the
+   *  operator was initialized with.  initialize binds one scorer per
+   *  operator, so the model is checked once per query instead of once
+   *  per document, and each scorer holds the constants of its model.
+   *  Scorers keep no iterator state, so copies of an operator (see
+   *  Qry.duplicate) share them.
+   */
+  protected static abstract class Scorer {
+
+    /**
+     *  The retrieval model that determines what is a match.
+     */
+    protected final RetrievalModel r;
+
+    protected Scorer (RetrievalModel r) {
+      this.r = r;
+    }
+
+    /**
+     *  Get a score for the document that the operator matched.
+     *  @param q The operator.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public abstract double getScore (QrySop q) throws IOException;
+
+    /**
+     *  Get a score for a document that the operator doesn't match.
+     *  Models without default scores use 0.
+     *  @param q The operator.
+     *  @param docid The internal document id.
+     *  @return The default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getDefaultScore (QrySop q, int docid) throws IOException {
+      return 0.0;
+    }
+
+    /**
+     *  Get the log of the score of the document that the operator
+     *  matched.  Scorers that compute scores in log space override it.
+     *  @param q The operator.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogScore (QrySop q) throws IOException {
+      return Math.log (this.getScore (q));
+    }
+
+    /**
+     *  Get the log of the score of a document that the operator doesn't
+     *  match.
+     *  @param q The operator.
+     *  @param docid The internal document id.
+     *  @return The log of the default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogDefaultScore (QrySop q, int docid) throws IOException {
+      return Math.log (this.getDefaultScore (q, docid));
+    }
+  }
+
+  /**
+   *  A scorer that combines the scores of its arguments one at a time,
+   *  in argument order, starting from an initial score.  getScore uses
+   *  combine, so evaluators that visit the arguments in another way
+   *  (e.g., term-at-a-time, see TaatEvaluator) compute the same
+   *  scores.
+   */
+  protected static abstract class CombiningScorer extends Scorer {
+
+    protected CombiningScorer (RetrievalModel r) {
+      super (r);
+    }
+
+    /**
+     *  Get the score of a document before any argument is combined.
+     *  @return The initial score.
+     */
+    public abstract double getInitialScore ();
+
+    /**
+     *  Combine the score of an argument into a document's score.
+     *  @param score The document's score so far.
+     *  @param i The argument number.
+     *  @param argScore The argument's score, or its default score if
+     *  it doesn't match the document.
+     *  @return The new score.
+     */
+    public abstract double combine (double score, int i, double argScore);
+
+    /**
+     *  Indicates whether arguments that don't match a document
+     *  contribute their default scores.
+     *  @return True if default scores are combined.
+     */
+    public abstract boolean usesDefaultScores ();
+  }
+
+  /**
+   *  The scorer that initialize bound, or null before initialize.
+   */
+  private Scorer scorer = null;
+
+  /**
+   *  Create the scorer of this operator for a retrieval model.  Called
+   *  by initialize after the arguments are initialized.
+   *  @param r The retrieval model.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support this
+   *  operator.
+   */
+  protected abstract Scorer bindScorer (RetrievalModel r);
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
-   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param r The retrieval model that determines how scores are
+   *  calculated.  It must be the model that the operator was
+   *  initialized with.
    *  @return The document score.
    *  @throws IOException Error accessing the Lucene index
    */
-  public abstract double getScore (RetrievalModel r)
-    throws IOException;
+  public final double getScore (RetrievalModel r) throws IOException {
+    return this.getScorer ().getScore (this);
+  }
+
+  /**
+   *  Get a score for a document that this operator doesn't match,
+   *  e.g., the Indri score of a document that doesn't have a query
+   *  term.
+   *  @param r The retrieval model that determines how scores are
+   *  calculated.  It must be the model that the operator was
+   *  initialized with.
+   *  @param docid The internal document id.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public final double getDefaultScore (RetrievalModel r, int docid)
+    throws IOException {
+    return this.getScorer ().getDefaultScore (this, docid);
+  }
+
+  /**
+   *  Get the log of the score of the document that docIteratorHasMatch
+   *  matched, e.g., for Indri #AND in log space.
+   *  @param r The retrieval model that determines how scores are
+   *  calculated.  It must be the model that the operator was
+   *  initialized with.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public final double getLogScore (RetrievalModel r) throws IOException {
+    return this.getScorer ().getLogScore (this);
+  }
+
+  /**
+   *  Get the log of the score of a document that this operator
+   *  doesn't match.
+   *  @param r The retrieval model that determines how scores are
+   *  calculated.  It must be the model that the operator was
+   *  initialized with.
+   *  @param docid The internal document id.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public final double getLogDefaultScore (RetrievalModel r, int docid)
+    throws IOException {
+    return this.getScorer ().getLogDefaultScore (this, docid);
+  }
+
+  /**
+   *  Find the arguments that the Boolean models score:  #AND, #OR,
+   *  and SCORE operators.  Other arguments don't change the score.
+   *  @param q A query operator.
+   *  @return For each argument, whether it is scored.
+   */
+  protected static boolean[] getBooleanArgs (Qry q) {
+
+    boolean[] scored = new boolean[q.args.size ()];
+
+    for (int i = 0; i < scored.length; i++) {
+      Qry q_i = q.args.get (i);
+      scored[i] = ((q_i instanceof QrySopOr) || (q_i instanceof QrySopAnd) ||
+                   (q_i instanceof QrySopScore));
+    }
 
-  public abstract double getDefaultScore (RetrievalModel r, int docid)
-    throws IOException;
+    return scored;
+  }
 
+  /**
+   *  Get the scorer that initialize bound.
+   *  @return The scorer.
+   *  @throws IllegalStateException The operator isn't initialized.
+   */
+  Scorer getScorer () {
+    if (this.scorer == null) {
+      throw new IllegalStateException (this + " isn't initialized.");
+    }
+    return this.scorer;
+  }
 
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
+   *  The operator's scorer is bound to the retrieval model.
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
@@ -39,5 +229,7 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    this.scorer = this.bindScorer (r);
   }
 }
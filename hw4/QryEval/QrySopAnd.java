@@ -22,110 +22,166 @@ public class QrySopAnd extends QrySop {
   }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Create the scorer of this operator for a retrieval model.
+   *  @param r The retrieval model.
+   *  @return The scorer.
    */
-  public double getScore (RetrievalModel r) throws IOException {
+  protected Scorer bindScorer (RetrievalModel r) {
 
     if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean (r);
+      return new BooleanScorer (r, 1.0, getBooleanArgs (this));
     } else if (r instanceof RetrievalModelRankedBoolean) {
-	  return this.getScoreRankedBoolean (r);
-	} else if (r instanceof RetrievalModelIndri) {
-	  return this.getScoreIndri(r);
-	} else {
+      return new BooleanScorer (r, Double.MAX_VALUE, getBooleanArgs (this));
+    } else if (r instanceof RetrievalModelIndri) {
+      if (((RetrievalModelIndri) r).getLogSpace ()) {
+        return new LogIndriScorer (r, this.args.size ());
+      }
+      return new IndriScorer (r, this.args.size ());
+    } else {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the AND operator.");
     }
   }
- 
- 
- 
+
   /**
-   *  getScore for the UnrankedBoolean retrieval model.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  The Boolean scores:  the minimum score of the arguments, starting
+   *  from 1 for UnrankedBoolean and from Double.MAX_VALUE (which means
+   *  0) for RankedBoolean.
    */
-	private double getScoreIndri (RetrievalModel r) throws IOException {
-		double score = 1.0;
-		int docid = this.docIteratorGetMatch();
-		//System.out.print(docid+" ");
-		for (int i =0; i<this.args.size(); i++) { 
-			Qry q = this.args.get(i);
-			if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
-				score *= Math.pow(((QrySop) q).getScore(r), 1.0/this.args.size());
-				//System.out.print("o ");
-			} else {
-				score *= Math.pow(((QrySop) q).getDefaultScore(r, docid), 1.0/this.args.size());
-				//System.out.print("x ");
-			}
-			//System.out.print(score+" ");
-		}
-		//System.out.print("\n");
-		return score; //Math.pow(score, 1.0/this.args.size());
-	}
-
-	public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
-		double score = 1.0;
-		for (int i =0; i<this.args.size(); i++) { 
-			Qry q = this.args.get(i);
-			score *= ((QrySopScore) q).getDefaultScore(r, docid);
-		}
-
-		return score; //Math.pow(score, 1.0/this.args.size());
-	}
-
-
-  private double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-	if (! this.docIteratorHasMatch(r)) 
-		return 0.0;
-    int doc_id = this.docIteratorGetMatch();
-	double score = 1.0; //Double.MAX_VALUE;
-    for (int i =0; i<this.args.size(); i++) {
-        Qry q = this.args.get(i);
-        if (q instanceof QrySopOr) {
-            if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-				score = Math.min(score, ((QrySopOr) q).getScore(r) );
-        } else if (q instanceof QrySopAnd) {
-			if (q.args.get(0).docIteratorHasMatch(r) &&q.docIteratorGetMatch() == doc_id)
-				score = Math.min(score, ((QrySopAnd) q).getScore(r) );
-		} else if (this.args.get(i) instanceof QrySopScore) {
-            if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-				score = Math.min( score, ((QrySopScore) q).getScore(r) );
+  private static class BooleanScorer extends Scorer {
+
+    private final double initialScore;
+    private final boolean[] scored;
+
+    BooleanScorer (RetrievalModel r, double initialScore, boolean[] scored) {
+      super (r);
+      this.initialScore = initialScore;
+      this.scored = scored;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+
+      if (! q.docIteratorHasMatch (this.r))
+        return 0.0;
+
+      int doc_id = q.docIteratorGetMatch ();
+      double score = this.initialScore;
+
+      for (int i = 0; i < this.scored.length; i++) {
+        Qry q_i = q.args.get (i);
+
+        if (this.scored[i] &&
+            q_i.args.get (0).docIteratorHasMatch (this.r) &&
+            (q_i.docIteratorGetMatch () == doc_id)) {
+          score = Math.min (score, ((QrySop) q_i).getScore (this.r));
         }
+      }
+
+      if (score == Double.MAX_VALUE) {
+        return 0.0;
+      }
+      return score;
     }
-    return score;
   }
 
-  private double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-
-
-	if (! this.docIteratorHasMatch(r)) 
-		return 0.0;
-    int doc_id = this.docIteratorGetMatch();
-	double score = Double.MAX_VALUE;
-    for (int i =0; i<this.args.size(); i++) {
-        Qry q = this.args.get(i);
-        if (q instanceof QrySopOr) {
-            if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-				score = Math.min(score, ((QrySopOr) q).getScore(r) );
-        } else if (q instanceof QrySopAnd) {
-			if (q.args.get(0).docIteratorHasMatch(r) &&q.docIteratorGetMatch() == doc_id)
-				score = Math.min(score, ((QrySopAnd) q).getScore(r) );
-		} else if (this.args.get(i) instanceof QrySopScore) {
-            if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-				score = Math.min( score, ((QrySopScore) q).getScore(r) );
+  /**
+   *  The Indri score:  the geometric mean of the arguments' scores,
+   *  using default scores for arguments that don't match.
+   */
+  private static class IndriScorer extends CombiningScorer {
+
+    private final double exponent;
+
+    IndriScorer (RetrievalModel r, int numArgs) {
+      super (r);
+      this.exponent = 1.0 / numArgs;
+    }
+
+    public double getInitialScore () {
+      return 1.0;
+    }
+
+    public double combine (double score, int i, double argScore) {
+      return score * Math.pow (argScore, this.exponent);
+    }
+
+    public boolean usesDefaultScores () {
+      return true;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+      double score = this.getInitialScore ();
+      int docid = q.docIteratorGetMatch ();
+
+      for (int i = 0; i < q.args.size (); i++) {
+        Qry q_i = q.args.get (i);
+
+        if (q_i.docIteratorHasMatch (this.r) && q_i.docIteratorGetMatch () == docid) {
+          score = this.combine (score, i, ((QrySop) q_i).getScore (this.r));
+        } else {
+          score = this.combine (score, i, ((QrySop) q_i).getDefaultScore (this.r, docid));
         }
+      }
+      return score;
     }
 
-	if (score == Double.MAX_VALUE) {
-		return 0.0;
-	}
-    return score;
+    public double getDefaultScore (QrySop q, int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < q.args.size (); i++) {
+        score *= ((QrySop) q.args.get (i)).getDefaultScore (this.r, docid);
+      }
+
+      return score;
+    }
   }
 
+  /**
+   *  The Indri score computed in log space:  the mean of the logs of
+   *  the arguments' scores, using log default scores for arguments
+   *  that don't match.  getScore exponentiates it.
+   */
+  private static class LogIndriScorer extends Scorer {
+
+    private final double exponent;
+
+    LogIndriScorer (RetrievalModel r, int numArgs) {
+      super (r);
+      this.exponent = 1.0 / numArgs;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+      return Math.exp (this.getLogScore (q));
+    }
+
+    public double getLogScore (QrySop q) throws IOException {
+      double score = 0.0;
+      int docid = q.docIteratorGetMatch ();
+
+      for (int i = 0; i < q.args.size (); i++) {
+        QrySop q_i = (QrySop) q.args.get (i);
+
+        if (q_i.docIteratorHasMatch (this.r) && q_i.docIteratorGetMatch () == docid) {
+          score += this.exponent * q_i.getLogScore (this.r);
+        } else {
+          score += this.exponent * q_i.getLogDefaultScore (this.r, docid);
+        }
+      }
+      return score;
+    }
 
+    public double getDefaultScore (QrySop q, int docid) throws IOException {
+      return Math.exp (this.getLogDefaultScore (q, docid));
+    }
+
+    public double getLogDefaultScore (QrySop q, int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < q.args.size (); i++) {
+        score += ((QrySop) q.args.get (i)).getLogDefaultScore (this.r, docid);
+      }
+
+      return score;
+    }
+  }
 }
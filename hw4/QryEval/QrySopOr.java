@@ -26,66 +26,75 @@ public class QrySopOr extends QrySop {
   }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Create the scorer of this operator for a retrieval model.
+   *  @param r The retrieval model.
+   *  @return The scorer.
    */
+  protected Scorer bindScorer (RetrievalModel r) {
 
-  public double getScore (RetrievalModel r) throws IOException {
     if (r instanceof RetrievalModelUnrankedBoolean) {
-		return this.getScoreUnrankedBoolean (r);
-    //} else if (r instanceof RetrievalModelRankedBoolean){
-	} else if (r instanceof RetrievalModelRankedBoolean) {
-		return this.getScoreRankedBoolean(r);
+      return new UnrankedBooleanScorer (r);
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      return new RankedBooleanScorer (r, getBooleanArgs (this));
     } else {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the OR operator.");
     }
   }
-  
 
-  public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
-	return 0.0;
+  /**
+   *  The UnrankedBoolean score:  1 if the operator matches.
+   */
+  private static class UnrankedBooleanScorer extends Scorer {
+
+    UnrankedBooleanScorer (RetrievalModel r) {
+      super (r);
+    }
+
+    public double getScore (QrySop q) {
+      if (! q.docIteratorHasMatchCache ()) {
+        return 0.0;
+      } else {
+        return 1.0;
+      }
+    }
   }
 
   /**
-   *  getScore for the UnrankedBoolean retrieval model.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  The RankedBoolean score:  the maximum score of the arguments.
    */
-  private double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      return 1.0;
+  private static class RankedBooleanScorer extends Scorer {
+
+    private final boolean[] scored;
+
+    RankedBooleanScorer (RetrievalModel r, boolean[] scored) {
+      super (r);
+      this.scored = scored;
     }
-  }
 
-  private double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-	  //return 1.0;
-
-	if (! this.docIteratorHasMatch(r)) {
-		return 0.0;
-	}
-
-
-	double score = 0.0;
-	int doc_id = this.docIteratorGetMatch();
-	for (int i =0; i<this.args.size(); i++) {
-		Qry q = this.args.get(i);
-		if (q instanceof QrySopOr) {
-			if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-			score = Math.max(score, ((QrySopOr) q).getScore(r));
-		} else if (q instanceof QrySopAnd) {
-			if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-			score = Math.max(score, ((QrySopAnd) q).getScore(r));
-		}else if (this.args.get(i) instanceof QrySopScore) {
-			if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-            score = Math.max( score, ((QrySopScore) q).getScore(r) );
-		}
-	}
-	return score;
+    public double getScore (QrySop q) throws IOException {
+
+      if (! q.docIteratorHasMatch (this.r)) {
+        return 0.0;
+      }
+
+      double score = 0.0;
+      int doc_id = q.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.scored.length; i++) {
+        Qry q_i = q.args.get (i);
+
+        //  An argument whose own match wasn't found doesn't have the
+        //  document, even if its first argument has a match.
+
+        if (this.scored[i] &&
+            q_i.args.get (0).docIteratorHasMatch (this.r) &&
+            q_i.docIteratorHasMatchCache () &&
+            (q_i.docIteratorGetMatch () == doc_id)) {
+          score = Math.max (score, ((QrySop) q_i).getScore (this.r));
+        }
+      }
+      return score;
+    }
   }
 }
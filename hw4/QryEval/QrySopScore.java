@@ -12,9 +12,35 @@ public class QrySopScore extends QrySop {
 
   /**
    *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  Some retrieval models have these, some don't.  They are computed
+   *  by initialize, so per-document scoring is pure arithmetic.
    */
-  
+
+  /**
+   *  The ordinal of the argument's field in the document length store.
+   */
+  private int fieldOrdinal = -1;
+
+  /**
+   *  BM25:  k_1, b, idf times the query term weight, k_1 + 1,
+   *  k_1 * (1 - b), and k_1 * b / avgLength.
+   */
+  private double bm25K1;
+  private double bm25B;
+  private double bm25IdfQtf;
+  private double bm25K1Plus1;
+  private double bm25K1OneMinusB;
+  private double bm25K1BOverAvgLength;
+
+  /**
+   *  Indri:  lambda, mu, mu * mle, 1 - lambda, and lambda * mle.
+   */
+  private double indriLambda;
+  private double indriMu;
+  private double indriMuMle;
+  private double indriOneMinusLambda;
+  private double indriLambdaMle;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -25,102 +51,364 @@ public class QrySopScore extends QrySop {
   }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
+   *  The UnrankedBoolean score:  1 if the argument matches.
+   */
+  private static class UnrankedBooleanScorer extends Scorer {
+
+    UnrankedBooleanScorer (RetrievalModel r) {
+      super (r);
+    }
+
+    public double getScore (QrySop q) {
+      if (! q.docIteratorHasMatchCache()) {
+        return 0.0;
+      } else {
+        return 1.0;
+      }
+    }
+  }
+
+  /**
+   *  The RankedBoolean score:  the term frequency.
+   */
+  private static class RankedBooleanScorer extends Scorer {
+
+    RankedBooleanScorer (RetrievalModel r) {
+      super (r);
+    }
+
+    public double getScore (QrySop q) {
+      double score = 0.0;
+      Qry q_0 = q.args.get (0);
+
+      if (q_0.docIteratorHasMatch (this.r)) {
+        score = ((QryIop) q_0).getTf ();
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  The BM25 score, with the document-independent parts of the
+   *  formula computed once.
+   */
+  private static class BM25Scorer extends Scorer {
+
+    private final int fieldOrdinal;
+    private final double idfQtf;
+    private final double k1Plus1;
+    private final double k1OneMinusB;
+    private final double k1BOverAvgLength;
+
+    BM25Scorer (RetrievalModel r, QrySopScore q) {
+      super (r);
+      this.fieldOrdinal = q.fieldOrdinal;
+      this.idfQtf = q.bm25IdfQtf;
+      this.k1Plus1 = q.bm25K1Plus1;
+      this.k1OneMinusB = q.bm25K1OneMinusB;
+      this.k1BOverAvgLength = q.bm25K1BOverAvgLength;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+      double score = 0.0;
+      Qry q_0 = q.args.get (0);
+
+      if (q_0.docIteratorHasMatch (this.r)) {
+        double tf = (double) (((QryIop) q_0).getTf ());
+        double doclen = (double) (Idx.getFieldLength (this.fieldOrdinal, q_0.docIteratorGetMatch ()));
+        double tfWeight = tf * this.k1Plus1 /
+          (tf + this.k1OneMinusB + this.k1BOverAvgLength * doclen);
+
+        score = this.idfQtf * tfWeight;
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  The Indri score, with the document-independent parts of the
+   *  formula computed once.  In log space, the log of the default
+   *  score, which depends only on the field length, is computed once
+   *  for each of the most common field lengths.
+   */
+  private static class IndriScorer extends Scorer {
+
+    /**
+     *  The number of field lengths whose log default scores are
+     *  computed in advance.
+     */
+    private static final int LOG_DEFAULT_LENGTHS = 1024;
+
+    private final int fieldOrdinal;
+    private final double mu;
+    private final double muMle;
+    private final double oneMinusLambda;
+    private final double lambdaMle;
+
+    /**
+     *  The log default score of each field length, or null if scores
+     *  aren't computed in log space.
+     */
+    private final double[] logDefaults;
+
+    IndriScorer (RetrievalModel r, QrySopScore q) {
+      super (r);
+      this.fieldOrdinal = q.fieldOrdinal;
+      this.mu = q.indriMu;
+      this.muMle = q.indriMuMle;
+      this.oneMinusLambda = q.indriOneMinusLambda;
+      this.lambdaMle = q.indriLambdaMle;
+
+      if (((RetrievalModelIndri) r).getLogSpace ()) {
+        this.logDefaults = new double[LOG_DEFAULT_LENGTHS];
+
+        for (int length = 0; length < LOG_DEFAULT_LENGTHS; length++) {
+          this.logDefaults[length] = Math.log (this.getDefaultScore (length));
+        }
+      } else {
+        this.logDefaults = null;
+      }
+    }
+
+    public double getScore (QrySop q) throws IOException {
+      double score = 1.0;
+      Qry q_0 = q.args.get (0);
+
+      if (q_0.docIteratorHasMatch (this.r)) {
+        double docLength = (double) (Idx.getFieldLength (this.fieldOrdinal, q_0.docIteratorGetMatch ()));
+        double tf = (double) (((QryIop) q_0).getTf ());
+        score = this.oneMinusLambda * ((tf + this.muMle) / (docLength + this.mu)) + this.lambdaMle;
+      }
+
+      return score;
+    }
+
+    public double getDefaultScore (QrySop q, int docid) {
+      return this.getDefaultScore (Idx.getFieldLength (this.fieldOrdinal, docid));
+    }
+
+    private double getDefaultScore (int length) {
+      double docLength = (double) length;
+
+      return this.oneMinusLambda * (this.muMle / (docLength + this.mu)) + this.lambdaMle;
+    }
+
+    public double getLogDefaultScore (QrySop q, int docid) {
+      int length = Idx.getFieldLength (this.fieldOrdinal, docid);
+
+      if ((this.logDefaults != null) && (length >= 0) &&
+          (length < LOG_DEFAULT_LENGTHS)) {
+        return this.logDefaults[length];
+      }
+
+      return Math.log (this.getDefaultScore (length));
+    }
+  }
+
+  /**
+   *  Get an upper bound on the score of any document.  The BM25 bound
+   *  uses the largest term frequency and the shortest field length of
+   *  the argument's inverted list, which needn't come from the same
+   *  document.  The Indri bound uses only the largest term frequency,
+   *  and bounds the score of a document that matches; see
+   *  getMaxDefaultScore for one that doesn't.  Call initialize first.
    *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  @return The upper bound.
    */
-  public double getScore (RetrievalModel r) throws IOException {
+  public double getMaxScore (RetrievalModel r) {
 
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean (r);
-    } else if (r instanceof RetrievalModelRankedBoolean) {
-	  return this.getScoreRankedBoolean (r);
-    } else if (r instanceof RetrievalModelBM25) {
-       return this.getScoreBM25 (r); 
+    if (r instanceof RetrievalModelBM25) {
+      QryIop q = (QryIop) this.args.get (0);
+
+      if ((q.getDf () == 0) || (this.bm25IdfQtf <= 0.0)) {
+        return 0.0;
+      }
+
+      int maxTf = q.getMaxTf ();
+      int minLength = q.getMinFieldLength ();
+
+      //  Without list statistics, use the limit of tfWeight as tf
+      //  grows, which is k_1 + 1.
+
+      if ((maxTf < 0) || (minLength < 0)) {
+        return this.bm25IdfQtf * this.bm25K1Plus1;
+      }
+
+      double tf = (double) maxTf;
+      double tfWeight = tf * this.bm25K1Plus1 /
+        (tf + this.bm25K1OneMinusB + this.bm25K1BOverAvgLength * minLength);
+
+      return this.bm25IdfQtf * tfWeight;
     } else if (r instanceof RetrievalModelIndri) {
-		return this.getScoreIndri (r); 
-	} 
-    else {
+      QryIop q = (QryIop) this.args.get (0);
+
+      //  The field length is at least tf, and (tf + mu * mle) / (tf +
+      //  mu) grows with tf, so the largest tf bounds the score without
+      //  looking up field lengths.  The bound is at most 1 because mle
+      //  is at most 1.
+
+      int maxTf = q.getMaxTf ();
+      double bound = this.indriOneMinusLambda + this.indriLambdaMle;
+
+      if ((maxTf > 0) && (maxTf + this.indriMu > 0.0)) {
+        bound = Math.min (bound, this.indriOneMinusLambda *
+          ((maxTf + this.indriMuMle) / (maxTf + this.indriMu)) +
+          this.indriLambdaMle);
+      }
+
+      return bound;
+    } else {
       throw new IllegalArgumentException
-        (r.getClass().getName() + " doesn't support the SCORE operator.");
+        (r.getClass().getName() + " doesn't support SCORE upper bounds.");
     }
   }
-  
+
   /**
-   *  getScore for the Unranked retrieval model.
+   *  Get upper bounds on the score contributions of blocks of the
+   *  argument's inverted list, for block-max evaluation.  For BM25 the
+   *  contribution is the score.  For Indri it is the gain of a match
+   *  over the default score, (1 - lambda) * tf / (length + mu).
+   *  Bounds come from the index's block-max sidecar if it has the
+   *  term and the model's parameters, otherwise they are computed from
+   *  the inverted list.  A streamed term that isn't in the sidecar has
+   *  one block with a loose bound.  Call initialize first.
    *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  @return The block bounds.
+   *  @throws IOException Error accessing the Lucene index.
    */
-  public double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      return 1.0;
+  public BlockMaxIndex.Blocks getBlockMaxScores (RetrievalModel r)
+    throws IOException {
+
+    QryIop q = (QryIop) this.args.get (0);
+    boolean indri = (r instanceof RetrievalModelIndri);
+    double scale = indri ? 1.0 : Math.max (0.0, this.bm25IdfQtf);
+
+    if (! (indri || (r instanceof RetrievalModelBM25))) {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support SCORE upper bounds.");
     }
-  }
 
-  public double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-	double score = 0.0; 
-	Qry q = this.args.get(0);	
-	if (q.docIteratorHasMatch(r)) {
-		score =  ((QryIop) q).docIteratorGetMatchPosting().tf;
-	}
-	return score;
-  }
+    //  The sidecar has bounds for terms, without the BM25 idf and
+    //  query weight factors.
 
-  public double getScoreBM25 (RetrievalModel r) throws IOException {
-	double score = 0.0; 
-	Qry q = this.args.get(0);	
-	if (q.docIteratorHasMatch(r)) {
+    BlockMaxIndex sidecar = Idx.getBlockMaxIndex ();
 
+    if ((q instanceof QryIopTerm) && (sidecar != null) &&
+        (indri ? sidecar.hasIndri (this.indriMu, this.indriLambda)
+               : sidecar.hasBM25 (this.bm25K1, this.bm25B))) {
+      BlockMaxIndex.Blocks blocks =
+        sidecar.getBlocks (q.getField (), ((QryIopTerm) q).getTerm (), indri);
 
-		int df = ((QryIop) q).getDf(); //this.invertedList.df;
-		double idf = Math.log10((Idx.getNumDocs() - (double)df + 0.5) / ((double)df + 0.5));
-		double avgLength = Idx.getSumOfFieldLengths(((QryIop) q).field) / (double) Idx.getDocCount(((QryIop) q).field);
+      if (blocks == null) {
+        return new BlockMaxIndex.Blocks (new int[0], new double[0]);
+      }
 
-        //double idf = ((QryIop) q).getIdf();
-        double tf = (double)(((QryIop) q).docIteratorGetMatchPosting().tf);
-        double k_1 = ((RetrievalModelBM25) r).getk_1();
-        double b = ((RetrievalModelBM25) r).getb();
-        double k_3 = ((RetrievalModelBM25) r).getk_3();
-        double doclen = (double)(Idx.getFieldLength(((QryIop) q).field, q.docIteratorGetMatch()));
-		double userWeight = 1.0; // when to set it? 
-        double tfWeight = tf*(k_1+1.0) / (tf + k_1 * (1.0-b+b*(doclen/avgLength) ) );
+      for (int i = 0; i < blocks.maxScores.length; i++) {
+        blocks.maxScores[i] *= scale;
+      }
 
-		score = idf * tfWeight * ( (k_3 + 1.0)*userWeight / (k_3+userWeight) );
-	}
-	return score;
+      return new BlockMaxIndex.Blocks (blocks.lastDocids, blocks.maxScores);
+    }
+
+    //  Streamed terms don't have an inverted list.  tf / length is at
+    //  most 1, and the BM25 tf weight is less than k_1 + 1.
+
+    if (q.getMaxTf () < 0) {
+      double bound = indri ? this.indriOneMinusLambda : scale * this.bm25K1Plus1;
+      return new BlockMaxIndex.Blocks (new int[] { Integer.MAX_VALUE },
+                                       new double[] { bound });
+    }
+
+    //  Compute exact block maxima from the inverted list.
+
+    InvList list = q.invertedList;
+    int blockSize = BlockMaxIndex.DEFAULT_BLOCK_SIZE;
+    int numBlocks = (list.df + blockSize - 1) / blockSize;
+    int[] lastDocids = new int[numBlocks];
+    double[] maxScores = new double[numBlocks];
+
+    for (int i = 0; i < list.df; i++) {
+      double tf = list.getTf (i);
+      double length = Idx.getFieldLength (this.fieldOrdinal, list.getDocid (i));
+      double s;
+
+      if (indri) {
+        s = this.indriOneMinusLambda * (tf / (length + this.indriMu));
+      } else {
+        s = scale * (tf * this.bm25K1Plus1 /
+          (tf + this.bm25K1OneMinusB + this.bm25K1BOverAvgLength * length));
+      }
+
+      lastDocids[i / blockSize] = list.getDocid (i);
+      maxScores[i / blockSize] = Math.max (maxScores[i / blockSize], s);
+    }
+
+    return new BlockMaxIndex.Blocks (lastDocids, maxScores);
   }
 
-  public double getScoreIndri (RetrievalModel r) throws IOException {
-	double score = 1.0; 
-	Qry q = this.args.get(0);
-    if (q.docIteratorHasMatch(r)) {
-		double mu = ((RetrievalModelIndri) r).getMu();
-		double lambda = ((RetrievalModelIndri) r).getLambda();
-		double mle = (double)(((QryIop) q).getCtf()) / (double)(Idx.getSumOfFieldLengths(((QryIop) q).field));
-		double docLength = (double)(Idx.getFieldLength(((QryIop) q).field, q.docIteratorGetMatch()));
-		double tf = (double)(((QryIop) q).docIteratorGetMatchPosting().tf);
-		score = indriScoreFunc(mu, lambda, tf, mle, docLength);
-	} else {
-		System.out.print("here!!!\n");
-	}
+  /**
+   *  Get the argument's impact-ordered postings from the index's
+   *  impact sidecar, for score-at-a-time evaluation.  Impacts are
+   *  quantized BM25 scores, including the idf and query weight
+   *  factors.  The df is the number of postings in the sidecar, so
+   *  the query doesn't need to be initialized.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The segments, or null if the argument isn't a term or
+   *  the index doesn't have a sidecar for the model's parameters.
+   */
+  public ImpactIndex.Segments getImpactSegments (RetrievalModel r) {
+
+    if (! (r instanceof RetrievalModelBM25)) {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support impact-ordered postings.");
+    }
+
+    RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+    Qry q = this.args.get (0);
+    ImpactIndex sidecar = Idx.getImpactIndex ();
+
+    if ((! (q instanceof QryIopTerm)) || (sidecar == null) ||
+        (! sidecar.hasBM25 (bm25.getk_1 (), bm25.getb ()))) {
+      return null;
+    }
+
+    ImpactIndex.Segments segments =
+      sidecar.getSegments (((QryIop) q).getField (), ((QryIopTerm) q).getTerm ());
 
-	return score; 
+    if (segments == null) {
+      return new ImpactIndex.Segments (new double[0], new int[1], null);
+    }
+
+    //  The same idf and query weight as bindScorer.
+
+    double k_3 = bm25.getk_3 ();
+    double userWeight = 1.0;
+    double df = segments.getNumPostings ();
+    double idf = Math.log10 ((Idx.getCollectionStats ().getNumDocs () - df + 0.5) /
+                             (df + 0.5));
+
+    return segments.scale (idf * ((k_3 + 1.0) * userWeight / (k_3 + userWeight)));
   }
 
-	public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
-		Qry q = this.args.get(0);
-		double mu = ((RetrievalModelIndri) r).getMu();
-        double lambda = ((RetrievalModelIndri) r).getLambda();	
-		double mle = (double)(((QryIop) q).getCtf()) / (double)(Idx.getSumOfFieldLengths(((QryIop) q).field));
-		double docLength = (double)(Idx.getFieldLength(((QryIop) q).field, docid));
+  /**
+   *  Get an upper bound on the Indri default score of any document,
+   *  which is the default score of an empty field.  Call initialize
+   *  first.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   */
+  public double getMaxDefaultScore (RetrievalModel r) {
 
-		return indriScoreFunc(mu, lambda, 0.0, mle, docLength);
-	}
+    if (r instanceof RetrievalModelIndri) {
+      double smoothed = (this.indriMu > 0.0) ?
+        this.indriOneMinusLambda * (this.indriMuMle / this.indriMu) : 0.0;
 
+      return smoothed + this.indriLambdaMle;
+    } else {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support default scores.");
+    }
+  }
 
 	public double indriScoreFunc(double mu, double lambda, double tf, double mle, double docLength) {
 		return (1-lambda)*(((double)tf+(mu*mle))/(docLength+mu))+lambda*mle;
@@ -128,17 +416,79 @@ public class QrySopScore extends QrySop {
 		
 
   /**
-   *  Initialize the query operator (and its arguments), including any
-   *  internal iterators.  If the query operator is of type QryIop, it
-   *  is fully evaluated, and the results are stored in an internal
-   *  inverted list that may be accessed via the internal iterator.
+   *  Initialize the query operator (and its argument), including any
+   *  internal iterators.  A term argument may be streamed.
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
   public void initialize (RetrievalModel r) throws IOException {
 
     Qry q = this.args.get (0);
-    q.initialize (r);
+
+    //  The SCORE operator only walks its argument's postings once, in
+    //  docid order, so a term argument doesn't need to be materialized.
+
+    if (q instanceof QryIopTerm) {
+      ((QryIopTerm) q).setStreamable (true);
+    }
+
+    super.initialize (r);
+  }
+
+  /**
+   *  Compute the document-independent parts of the score from the
+   *  index's corpus statistics snapshot, and create the scorer of the
+   *  retrieval model.
+   *  @param r The retrieval model.
+   *  @return The scorer.
+   */
+  protected Scorer bindScorer (RetrievalModel r) {
+
+    Qry q = this.args.get (0);
+    String field = ((QryIop) q).getField ();
+    CollectionStats stats = Idx.getCollectionStats ();
+
+    this.fieldOrdinal = Idx.getFieldOrdinal (field);
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return new UnrankedBooleanScorer (r);
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      return new RankedBooleanScorer (r);
+    } else if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+      double k_1 = bm25.getk_1 ();
+      double b = bm25.getb ();
+      double k_3 = bm25.getk_3 ();
+      double userWeight = 1.0;
+      double df = ((QryIop) q).getDf ();
+      double idf = Math.log10 ((stats.getNumDocs () - df + 0.5) / (df + 0.5));
+
+      this.bm25K1 = k_1;
+      this.bm25B = b;
+      this.bm25IdfQtf = idf * ((k_3 + 1.0) * userWeight / (k_3 + userWeight));
+      this.bm25K1Plus1 = k_1 + 1.0;
+      this.bm25K1OneMinusB = k_1 * (1.0 - b);
+      this.bm25K1BOverAvgLength = k_1 * b / stats.getAvgFieldLength (field);
+
+      return new BM25Scorer (r, this);
+    } else if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+      double mu = indri.getMu ();
+      double lambda = indri.getLambda ();
+      double mle = (double) ((QryIop) q).getCtf () /
+                   (double) stats.getSumOfFieldLengths (field);
+
+      this.indriLambda = lambda;
+      this.indriMu = mu;
+      this.indriMuMle = mu * mle;
+      this.indriOneMinusLambda = 1 - lambda;
+      this.indriLambdaMle = lambda * mle;
+
+      return new IndriScorer (r, this);
+    } else {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support the SCORE operator.");
+    }
   }
 
 }
@@ -20,45 +20,67 @@ public class QrySopSum extends QrySop {
   }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Create the scorer of this operator for a retrieval model.
+   *  @param r The retrieval model.
+   *  @return The scorer.
    */
-
-	public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
-		return 0.0;
-	}
-
-  public double getScore (RetrievalModel r) throws IOException {
+  protected Scorer bindScorer (RetrievalModel r) {
 
     if (r instanceof RetrievalModelBM25) {
+      for (Qry q_i : this.args) {
+        if ((q_i instanceof QrySopOr) || (q_i instanceof QrySopAnd)) {
+          throw new IllegalArgumentException
+            (r.getClass().getName() + " doesn't support the OR/AND operator.");
+        }
+      }
 
-		if (! this.docIteratorHasMatch(r))  {
-			return 0.0;
-		}
-
-		int doc_id = this.docIteratorGetMatch();
-		double score = 0.0;
-		for (int i =0; i<this.args.size(); i++) {
-			Qry q = this.args.get(i);
-			double s = 0.0;
-			if ((q instanceof QrySopOr) || (q instanceof QrySopAnd)) {
-				throw new IllegalArgumentException
-				   (r.getClass().getName() + " doesn't support the OR/AND operator.");
-			} else {
-				if (q.args.get(0).docIteratorHasMatch(r) && q.docIteratorGetMatch() == doc_id)
-					score += ((QrySop) q).getScore(r);
-
-			}
-			//score += s; 
-		}
-		return score;
-
-
-	} else {
+      return new BM25Scorer (r);
+    } else {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the SUM operator.");
     }
   }
+
+  /**
+   *  The BM25 score:  the sum of the scores of the arguments that
+   *  match.
+   */
+  private static class BM25Scorer extends CombiningScorer {
+
+    BM25Scorer (RetrievalModel r) {
+      super (r);
+    }
+
+    public double getInitialScore () {
+      return 0.0;
+    }
+
+    public double combine (double score, int i, double argScore) {
+      return score + argScore;
+    }
+
+    public boolean usesDefaultScores () {
+      return false;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+
+      if (! q.docIteratorHasMatch (this.r)) {
+        return 0.0;
+      }
+
+      int doc_id = q.docIteratorGetMatch ();
+      double score = this.getInitialScore ();
+
+      for (int i = 0; i < q.args.size (); i++) {
+        Qry q_i = q.args.get (i);
+
+        if (q_i.args.get (0).docIteratorHasMatch (this.r) &&
+            (q_i.docIteratorGetMatch () == doc_id)) {
+          score = this.combine (score, i, ((QrySop) q_i).getScore (this.r));
+        }
+      }
+      return score;
+    }
+  }
 }
@@ -19,4 +19,27 @@ public abstract class QrySopW extends QrySop {
 		System.out.print("= "+weightSum+"\n");
 	}
 
+  /**
+   *  Get the canonical string of this query operator, which includes
+   *  the weights (e.g., "#wand( 0.3 apple.body 0.7 pie.body )").
+   *  @return The canonical string of this query operator.
+   */
+  @Override
+  public String getCanonicalString () {
+
+    StringBuilder result =
+      new StringBuilder (this.getDisplayName ().toLowerCase ());
+
+    result.append ("( ");
+
+    for (int i=0; i<this.args.size(); i++) {
+      result.append (this.weights.get (i));
+      result.append (" ");
+      result.append (this.args.get (i).getCanonicalString ());
+      result.append (" ");
+    }
+
+    return result.append (")").toString ();
+  }
+
 }
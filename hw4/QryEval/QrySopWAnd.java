@@ -18,57 +18,131 @@ public class QrySopWAnd extends QrySopW {
   }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Create the scorer of this operator for a retrieval model.
+   *  @param r The retrieval model.
+   *  @return The scorer.
    */
+  protected Scorer bindScorer (RetrievalModel r) {
 
-  public double getScore (RetrievalModel r) throws IOException {
-	if (r instanceof RetrievalModelIndri) {
-	  return this.getScoreIndri(r);
-	} else {
+    if (r instanceof RetrievalModelIndri) {
+      double[] exponents = new double[this.args.size ()];
+
+      for (int i = 0; i < exponents.length; i++) {
+        exponents[i] = this.weights.get (i) / this.weightSum;
+      }
+
+      if (((RetrievalModelIndri) r).getLogSpace ()) {
+        return new LogIndriScorer (r, exponents);
+      }
+      return new IndriScorer (r, exponents);
+    } else {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the AND operator.");
     }
   }
- 
- 
- 
+
   /**
-   *  getScore for the UnrankedBoolean retrieval model.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  The Indri score:  the weighted geometric mean of the arguments'
+   *  scores, using default scores for arguments that don't match.
    */
-	private double getScoreIndri (RetrievalModel r) throws IOException {
-		double score = 1.0;
-		int docid = this.docIteratorGetMatch();
-		//System.out.print(docid+" ");
-		for (int i =0; i<this.args.size(); i++) { 
-			Qry q = this.args.get(i);
-			double weight = this.weights.get(i);
-			if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
-				score *= Math.pow(((QrySop) q).getScore(r), weight/this.weightSum);
-				//System.out.print(weight+" o ");
-			} else {
-				score *= Math.pow(((QrySop) q).getDefaultScore(r, docid), weight/this.weightSum);
-				//System.out.print(weight+" x ");
-			}
-		}
-		//System.out.print(" "+score+"\n");
-		return score;
-	}
-
-	public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
-		double score = 1.0;	
-		for (int i =0; i<this.args.size(); i++) { 
-			//System.out.print("\t"+i+"\n");
-			Qry q = this.args.get(i);
-			double weight = this.weights.get(i);
-			score *= ((QrySop) q).getDefaultScore(r, docid);
-		}
-		return score;
-	}
+  private static class IndriScorer extends CombiningScorer {
+
+    /**
+     *  Each argument's weight divided by the sum of the weights.
+     */
+    private final double[] exponents;
+
+    IndriScorer (RetrievalModel r, double[] exponents) {
+      super (r);
+      this.exponents = exponents;
+    }
+
+    public double getInitialScore () {
+      return 1.0;
+    }
+
+    public double combine (double score, int i, double argScore) {
+      return score * Math.pow (argScore, this.exponents[i]);
+    }
 
+    public boolean usesDefaultScores () {
+      return true;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+      double score = this.getInitialScore ();
+      int docid = q.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.exponents.length; i++) {
+        Qry q_i = q.args.get (i);
+
+        if (q_i.docIteratorHasMatch (this.r) && q_i.docIteratorGetMatch () == docid) {
+          score = this.combine (score, i, ((QrySop) q_i).getScore (this.r));
+        } else {
+          score = this.combine (score, i, ((QrySop) q_i).getDefaultScore (this.r, docid));
+        }
+      }
+      return score;
+    }
+
+    public double getDefaultScore (QrySop q, int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.exponents.length; i++) {
+        score *= ((QrySop) q.args.get (i)).getDefaultScore (this.r, docid);
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  The Indri score computed in log space:  the weighted mean of the
+   *  logs of the arguments' scores, using log default scores for
+   *  arguments that don't match.  getScore exponentiates it.
+   */
+  private static class LogIndriScorer extends Scorer {
+
+    /**
+     *  Each argument's weight divided by the sum of the weights.
+     */
+    private final double[] exponents;
+
+    LogIndriScorer (RetrievalModel r, double[] exponents) {
+      super (r);
+      this.exponents = exponents;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+      return Math.exp (this.getLogScore (q));
+    }
+
+    public double getLogScore (QrySop q) throws IOException {
+      double score = 0.0;
+      int docid = q.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.exponents.length; i++) {
+        QrySop q_i = (QrySop) q.args.get (i);
+
+        if (q_i.docIteratorHasMatch (this.r) && q_i.docIteratorGetMatch () == docid) {
+          score += this.exponents[i] * q_i.getLogScore (this.r);
+        } else {
+          score += this.exponents[i] * q_i.getLogDefaultScore (this.r, docid);
+        }
+      }
+      return score;
+    }
+
+    public double getDefaultScore (QrySop q, int docid) throws IOException {
+      return Math.exp (this.getLogDefaultScore (q, docid));
+    }
+
+    public double getLogDefaultScore (QrySop q, int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.exponents.length; i++) {
+        score += ((QrySop) q.args.get (i)).getLogDefaultScore (this.r, docid);
+      }
+      return score;
+    }
+  }
 }
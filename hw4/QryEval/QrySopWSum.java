@@ -22,44 +22,76 @@ public class QrySopWSum extends QrySopW	 {
   }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Create the scorer of this operator for a retrieval model.
+   *  @param r The retrieval model.
+   *  @return The scorer.
    */
-  public double getScore (RetrievalModel r) throws IOException {
+  protected Scorer bindScorer (RetrievalModel r) {
 
-	if (r instanceof RetrievalModelIndri) {
-	  return this.getScoreIndri(r);
-	} else {
+    if (r instanceof RetrievalModelIndri) {
+      double[] weights = new double[this.args.size ()];
+
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = this.weights.get (i);
+      }
+
+      return new IndriScorer (r, weights, this.weightSum);
+    } else {
       throw new IllegalArgumentException
         (r.getClass().getName() + " doesn't support the AND operator.");
     }
   }
- 
-	private double getScoreIndri (RetrievalModel r) throws IOException {
-		double score = 0.0;
-		int docid = this.docIteratorGetMatch();
-		for (int i =0; i<this.args.size(); i++) { 
-			Qry q = this.args.get(i);
-			double weight = this.weights.get(i);
-			if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
-				score += (((QrySop) q).getScore(r))* weight/this.weightSum;
-			} else {
-				score += (((QrySop) q).getDefaultScore(r, docid))* weight/this.weightSum;
-			}
-		}
-		return score;
-	}
-
-	public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
-		double score = 0.0;	
-		for (int i =0; i<this.args.size(); i++) { 
-			Qry q = this.args.get(i);
-			double weight = this.weights.get(i);
-			score += (((QrySop) q).getDefaultScore(r, docid)); // * weight/this.weightSum;
-		}
-		return score;
-	}
 
+  /**
+   *  The Indri score:  the weighted mean of the arguments' scores,
+   *  using default scores for arguments that don't match.
+   */
+  private static class IndriScorer extends CombiningScorer {
+
+    private final double[] weights;
+    private final double weightSum;
+
+    IndriScorer (RetrievalModel r, double[] weights, double weightSum) {
+      super (r);
+      this.weights = weights;
+      this.weightSum = weightSum;
+    }
+
+    public double getInitialScore () {
+      return 0.0;
+    }
+
+    public double combine (double score, int i, double argScore) {
+      return score + argScore * this.weights[i] / this.weightSum;
+    }
+
+    public boolean usesDefaultScores () {
+      return true;
+    }
+
+    public double getScore (QrySop q) throws IOException {
+      double score = this.getInitialScore ();
+      int docid = q.docIteratorGetMatch ();
+
+      for (int i = 0; i < this.weights.length; i++) {
+        Qry q_i = q.args.get (i);
+
+        if (q_i.docIteratorHasMatch (this.r) && q_i.docIteratorGetMatch () == docid) {
+          score = this.combine (score, i, ((QrySop) q_i).getScore (this.r));
+        } else {
+          score = this.combine (score, i, ((QrySop) q_i).getDefaultScore (this.r, docid));
+        }
+      }
+      return score;
+    }
+
+    public double getDefaultScore (QrySop q, int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.weights.length; i++) {
+        score += (((QrySop) q.args.get (i)).getDefaultScore (this.r, docid));
+      }
+      return score;
+    }
+  }
 }
@@ -0,0 +1,262 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  A least-recently-used cache of query results, so that a query that
+ *  is evaluated again with the same retrieval model returns the
+ *  results of the first evaluation.
+ *  <p>
+ *  The key is the index's path and version, the retrieval model's
+ *  parameter string (RetrievalModel.getParameterString), the number of
+ *  results kept, and the canonical string of the optimized query
+ *  (Qry.getCanonicalString).  The cache stores copies of the docids
+ *  and scores, and every hit returns a new ScoreList, so callers may
+ *  sort or change the list.  The cache is bounded by the number of
+ *  queries.
+ *  </p>
+ *  <p>
+ *  The cache can be saved to a file and loaded by a later run.  The
+ *  index version is part of the key, so results of another version of
+ *  the index are never returned.  File format:  magic, format version,
+ *  number of queries, and, in least-recently-used order, each query's
+ *  number of key bytes, UTF-8 key, number of results, docids, and
+ *  scores.
+ *  </p>
+ */
+public class QueryResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455152;		// "QEQR"
+  private static final int FORMAT = 1;
+
+  /**
+   *  The results of a query.
+   */
+  private static class Results {
+    final int[] docids;
+    final double[] scores;
+
+    Results (int[] docids, double[] scores) {
+      this.docids = docids;
+      this.scores = scores;
+    }
+  }
+
+  /**
+   *  The maximum number of queries to cache.
+   */
+  private int maxQueries;
+
+  /**
+   *  The cached results, in least-recently-used to most-recently-used
+   *  order.
+   */
+  private LinkedHashMap<String,Results> results =
+    new LinkedHashMap<String,Results> (16, 0.75f, true);
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param maxQueries The maximum number of queries to cache.
+   */
+  public QueryResultCache (int maxQueries) {
+    this.maxQueries = maxQueries;
+  }
+
+  /**
+   *  Evict least-recently-used results until the cache is within its
+   *  budget.
+   */
+  private void evict () {
+
+    Iterator<Map.Entry<String,Results>> iter = this.results.entrySet ().iterator ();
+
+    while ((this.results.size () > this.maxQueries) && iter.hasNext ()) {
+      iter.next ();
+      iter.remove ();
+      this.evictions ++;
+    }
+  }
+
+  /**
+   *  Get the cached results of a query.
+   *  @param key The key of the query (see getKey).
+   *  @param maxResults The number of results to keep, or 0 to keep all.
+   *  @return A new score list with the cached results, or null if the
+   *  query isn't cached.
+   */
+  public synchronized ScoreList get (String key, int maxResults) {
+
+    Results cached = this.results.get (key);
+
+    if (cached == null) {
+      this.misses ++;
+      return null;
+    }
+
+    this.hits ++;
+
+    ScoreList r = new ScoreList (maxResults);
+
+    for (int i = 0; i < cached.docids.length; i++) {
+      r.add (cached.docids[i], cached.scores[i]);
+    }
+
+    return r;
+  }
+
+  public synchronized long getEvictions () {
+    return this.evictions;
+  }
+
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  Get the key of a query.
+   *  @param q The optimized query.
+   *  @param model The retrieval model.
+   *  @param maxResults The number of results kept, or 0 to keep all.
+   *  @return The key.
+   */
+  public static String getKey (Qry q, RetrievalModel model, int maxResults) {
+    return (Idx.getIndexId () + "\n" + model.getParameterString () + "\n" +
+            maxResults + "\n" + q.getCanonicalString ());
+  }
+
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Add the results that were saved in a file.  A missing file is
+   *  ignored.
+   *  @param file The file.
+   *  @throws IOException The file can't be read, or isn't a cache.
+   */
+  public synchronized void load (File file) throws IOException {
+
+    if (! file.isFile ()) {
+      return;
+    }
+
+    try (DataInputStream in = new DataInputStream (
+           new BufferedInputStream (new FileInputStream (file)))) {
+
+      if ((in.readInt () != MAGIC) || (in.readInt () != FORMAT)) {
+        throw new IOException (file + " isn't a query result cache");
+      }
+
+      int n = in.readInt ();
+
+      for (int i = 0; i < n; i++) {
+        byte[] key = new byte[in.readInt ()];
+        in.readFully (key);
+
+        int size = in.readInt ();
+        int[] docids = new int[size];
+        double[] scores = new double[size];
+
+        for (int j = 0; j < size; j++) {
+          docids[j] = in.readInt ();
+        }
+
+        for (int j = 0; j < size; j++) {
+          scores[j] = in.readDouble ();
+        }
+
+        this.results.put (new String (key, StandardCharsets.UTF_8),
+                          new Results (docids, scores));
+      }
+    }
+
+    this.evict ();
+  }
+
+  /**
+   *  Cache the results of a query.
+   *  @param key The key of the query (see getKey).
+   *  @param r The results.  They are copied.
+   */
+  public synchronized void put (String key, ScoreList r) {
+
+    int[] docids = new int[r.size ()];
+    double[] scores = new double[r.size ()];
+
+    for (int i = 0; i < docids.length; i++) {
+      docids[i] = r.getDocid (i);
+      scores[i] = r.getDocidScore (i);
+    }
+
+    this.results.put (key, new Results (docids, scores));
+    this.evict ();
+  }
+
+  /**
+   *  Save the cached results to a file.  The cache is written to a
+   *  temporary file that is renamed, so a later run never reads a
+   *  partial cache.
+   *  @param file The file.
+   *  @throws IOException The file can't be written.
+   */
+  public synchronized void save (File file) throws IOException {
+
+    File tmp = new File (file.getPath () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (tmp)))) {
+
+      out.writeInt (MAGIC);
+      out.writeInt (FORMAT);
+      out.writeInt (this.results.size ());
+
+      for (Map.Entry<String,Results> e : this.results.entrySet ()) {
+        byte[] key = e.getKey ().getBytes (StandardCharsets.UTF_8);
+        Results cached = e.getValue ();
+
+        out.writeInt (key.length);
+        out.write (key);
+        out.writeInt (cached.docids.length);
+
+        for (int docid : cached.docids) {
+          out.writeInt (docid);
+        }
+
+        for (double score : cached.scores) {
+          out.writeDouble (score);
+        }
+      }
+    } catch (IOException ex) {
+      tmp.delete ();
+      throw ex;
+    }
+
+    if (! tmp.renameTo (file)) {
+      tmp.delete ();
+      throw new IOException ("Can't replace " + file);
+    }
+  }
+
+  /**
+   *  Get a string version of the cache statistics.
+   *  @return The cache statistics.
+   */
+  @Override public synchronized String toString () {
+    return ("Query result cache:  hits=" + this.hits +
+            ", misses=" + this.misses +
+            ", evictions=" + this.evictions +
+            ", queries=" + this.results.size () + "/" + this.maxQueries);
+  }
+}
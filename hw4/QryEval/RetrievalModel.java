@@ -16,4 +16,14 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get a string that identifies the retrieval model and the
+   *  parameters that affect scores.  Results are cached by it, so
+   *  models with parameters must override it.
+   *  @return The model's class name and scoring parameters.
+   */
+  public String getParameterString () {
+    return this.getClass ().getName ();
+  }
+
 }
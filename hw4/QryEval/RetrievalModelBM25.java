@@ -38,4 +38,10 @@ public class RetrievalModelBM25 extends RetrievalModel {
         return new String ("#sum");
     }
 
+    @Override
+    public String getParameterString () {
+        return (super.getParameterString () + "(k_1=" + this.k_1 +
+                ", b=" + this.b + ", k_3=" + this.k_3 + ")");
+    }
+
 }
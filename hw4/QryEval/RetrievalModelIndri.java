@@ -15,6 +15,12 @@ import java.io.*;
 public class RetrievalModelIndri extends RetrievalModel {
     private double lambda; 
     private double mu;
+
+    /**
+     *  Whether #AND and #WAND combine the logs of their arguments'
+     *  scores instead of multiplying powers of them.
+     */
+    private boolean logSpace = false;
 	private Boolean fb = false;
 	private int fbDocs=0;
 	private int fbTerms=0;
@@ -76,10 +82,36 @@ public class RetrievalModelIndri extends RetrievalModel {
         return this.mu; 
     }
 
+    /**
+     *  Indicates whether #AND and #WAND scores are computed in log
+     *  space.  Scores are exponentiated when an operator's probability
+     *  is needed, so they are the same up to rounding, and documents
+     *  are ranked in the same order.
+     *  @return True if scores are computed in log space.
+     */
+    public boolean getLogSpace() {
+        return this.logSpace;
+    }
+
+    /**
+     *  Set whether #AND and #WAND scores are computed in log space.
+     *  @param logSpace True to compute scores in log space.
+     */
+    public void setLogSpace(boolean logSpace) {
+        this.logSpace = logSpace;
+    }
+
     public String defaultQrySopName () {
         return new String ("#and");
     }
 
+    @Override
+    public String getParameterString () {
+        return (super.getParameterString () + "(mu=" + this.mu +
+                ", lambda=" + this.lambda +
+                (this.logSpace ? ", logSpace" : "") + ")");
+    }
+
 	public boolean getFb() {
 		return this.fb;
 	}
@@ -0,0 +1,157 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Evaluates a BM25 #SUM query of terms score-at-a-time (SAAT), from
+ *  the impact-ordered postings of the index's impact sidecar (see
+ *  ImpactIndex).  The segments of all of the arguments are processed
+ *  in descending order of their score contribution, so the postings
+ *  that matter most are read first, and each posting adds its segment's
+ *  contribution to a dense accumulator (see TaatEvaluator).
+ *  <p>
+ *  Evaluation is anytime:  it can stop after a budget of postings,
+ *  which bounds its cost regardless of how long the inverted lists
+ *  are.  The documents that were touched are ranked by the scores
+ *  accumulated so far.  Scores are sums of quantized impacts, so even
+ *  without a budget they approximate the BM25 scores that
+ *  document-at-a-time evaluation computes.
+ *  </p>
+ */
+public class SaatEvaluator {
+
+  /**
+   *  Indicates whether a query can be evaluated score-at-a-time.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is a BM25 #SUM of SCORE operators of terms and
+   *  the index has an impact sidecar for the model's parameters.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! ((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25))) {
+      return false;
+    }
+
+    RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+    ImpactIndex sidecar = Idx.getImpactIndex ();
+
+    if ((sidecar == null) || (! sidecar.hasBM25 (bm25.getk_1 (), bm25.getb ()))) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! ((q_i instanceof QrySopScore) &&
+             (q_i.args.get (0) instanceof QryIopTerm))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query, adding the touched documents to a score list.
+   *  The query doesn't need to be initialized:  the postings and dfs
+   *  come from the sidecar, so its inverted lists aren't read.
+   *  @param q The query.  canEvaluate must be true for it.
+   *  @param r The retrieval model.
+   *  @param results The score list.  If it is unbounded, documents are
+   *  added in docid order.
+   *  @param budget The largest number of postings to process, or 0 to
+   *  process all of them.
+   *  @return The number of postings that were processed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long evaluate (Qry q, RetrievalModel r, ScoreList results,
+                               long budget)
+    throws IOException {
+
+    //  List every segment of every argument.
+
+    int n = q.args.size ();
+    ImpactIndex.Segments[] segments = new ImpactIndex.Segments[n];
+    int numSegments = 0;
+
+    for (int i = 0; i < n; i++) {
+      segments[i] = ((QrySopScore) q.args.get (i)).getImpactSegments (r);
+      numSegments += segments[i].getNumSegments ();
+    }
+
+    final double[] impacts = new double[numSegments];
+    final int[] args = new int[numSegments];
+    int[] segs = new int[numSegments];
+    Integer[] order = new Integer[numSegments];
+
+    for (int i = 0, k = 0; i < n; i++) {
+      for (int s = 0; s < segments[i].getNumSegments (); s++, k++) {
+        impacts[k] = segments[i].impacts[s];
+        args[k] = i;
+        segs[k] = s;
+        order[k] = k;
+      }
+    }
+
+    //  Highest contributions first.  Ties are broken by argument order
+    //  so that results don't depend on the sort.
+
+    Arrays.sort (order, new Comparator<Integer> () {
+        public int compare (Integer a, Integer b) {
+          int c = Double.compare (impacts[b], impacts[a]);
+          return (c != 0) ? c : Integer.compare (args[a], args[b]);
+        }
+      });
+
+    TaatEvaluator.Accumulators acc = TaatEvaluator.borrowAccumulators ();
+    double[] scores = acc.scores;
+    int[] lastArg = acc.lastArg;		// Marks the touched documents
+    long remaining = (budget > 0) ? budget : Long.MAX_VALUE;
+    long processed = 0;
+
+    try {
+
+      //  Process segments until the budget runs out.  A budget can end
+      //  in the middle of a segment.
+
+      for (int j = 0; (j < numSegments) && (remaining > 0); j++) {
+        int k = order[j];
+        ImpactIndex.Segments seg = segments[args[k]];
+        int size = (int) Math.min (seg.getSize (segs[k]), remaining);
+        double impact = impacts[k];
+
+        for (int p = 0; p < size; p++) {
+          int docid = seg.getDocid (segs[k], p);
+
+          if (lastArg[docid] < 0) {
+            acc.touch (docid);
+            lastArg[docid] = 0;
+            scores[docid] = impact;
+          } else {
+            scores[docid] += impact;
+          }
+        }
+
+        remaining -= size;
+        processed += size;
+      }
+
+      //  Collect the touched documents.
+
+      if (results.getMaxSize () == 0) {
+        Arrays.sort (acc.touched, 0, acc.numTouched);
+      }
+
+      for (int t = 0; t < acc.numTouched; t++) {
+        int docid = acc.touched[t];
+        results.add (docid, scores[docid]);
+      }
+
+      return processed;
+    } finally {
+      TaatEvaluator.releaseAccumulators (acc);
+    }
+  }
+}
@@ -7,42 +7,122 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Entries are stored in parallel arrays of internal docids, scores,
+ *  and external docids.  External docids are only needed to break
+ *  ties between equal scores, so they are fetched from the index the
+ *  first time a comparison or a caller needs them.
+ *  </p>
+ *  <p>
+ *  A score list may be bounded to the best k entries.  A bounded list
+ *  is kept as a heap with the worst entry at the root, so a document
+ *  that scores below the k'th best is discarded without any other
+ *  work.  The entries of a bounded list are in no particular order
+ *  until the list is sorted.
+ *  </p>
  */
 public class ScoreList {
 
-  //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  private static final int INITIAL_CAPACITY = 16;
 
-  private class ScoreListEntry {
-    private int docid;
-    private String externalId;
-    private double score;
+  /**
+   *  Internal docids, scores, and (lazily fetched) external docids.
+   */
+  private int[] docids;
+  private double[] scores;
+  private String[] externalIds;
 
-    private ScoreListEntry(int internalDocid, double score) {
-      this.docid = internalDocid;
-      this.score = score;
+  /**
+   *  The number of entries.
+   */
+  private int size = 0;
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
-    }
+  /**
+   *  The maximum number of entries kept, or 0 if the list is unbounded.
+   */
+  private int maxSize;
+
+  /**
+   *  Whether the entries of a bounded list are in heap order now.
+   */
+  private boolean heapOrder = true;
+
+  /**
+   *  Create an unbounded score list.
+   */
+  public ScoreList() {
+    this(0);
   }
 
   /**
-   *  A list of document ids and scores. 
+   *  Create a score list that keeps only the best entries.
+   *  @param maxSize The maximum number of entries to keep, or 0 to
+   *  keep every entry.
    */
-  private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  public ScoreList(int maxSize) {
+    this.maxSize = maxSize;
+
+    //  A bounded list has one extra slot for a candidate entry.
+
+    int capacity = (maxSize > 0) ? Math.min(maxSize + 1, INITIAL_CAPACITY)
+                                 : INITIAL_CAPACITY;
+
+    this.docids = new int[capacity];
+    this.scores = new double[capacity];
+    this.externalIds = new String[capacity];
+  }
 
   /**
-   *  Append a document score to a score list.
+   *  Append a document score to a score list.  If the list is bounded
+   *  and full, the document replaces the worst entry if it is better,
+   *  and is discarded otherwise.
    *  @param docid An internal document id.
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+
+    if ((this.maxSize == 0) || (this.size < this.maxSize)) {
+      this.set(this.size, docid, score);
+      this.size++;
+
+      if ((this.maxSize > 0) && this.heapOrder)
+        this.siftUp(this.size - 1);
+      return;
+    }
+
+    if (! this.heapOrder)
+      this.heapify();
+
+    //  Most documents score below the worst entry.
+
+    if (score < this.scores[0])
+      return;
+
+    //  Compare the candidate to the worst entry in the spare slot.
+
+    int candidate = this.maxSize;
+
+    this.set(candidate, docid, score);
+
+    if (this.compare(candidate, 0) < 0) {
+      this.swap(candidate, 0);
+      this.siftDown(0, this.size);
+    }
+  }
+
+  /**
+   *  Compare two entries.  Sort by score, then external docid.
+   *  @return A negative number if entry i ranks before entry j, a
+   *  positive number if it ranks after, otherwise 0.
+   */
+  private int compare(int i, int j) {
+    if (this.scores[i] > this.scores[j])
+      return -1;
+    else
+      if (this.scores[i] < this.scores[j])
+	return 1;
+      else
+	return this.getExternalId(i).compareTo(this.getExternalId(j));
   }
 
   /**
@@ -51,7 +131,8 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.scores.get(n).docid;
+    this.checkIndex(n);
+    return this.docids[n];
   }
 
   /**
@@ -60,7 +141,45 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    this.checkIndex(n);
+    return this.scores[n];
+  }
+
+  /**
+   *  Get the external docid of the n'th entry, fetching it from the
+   *  index if it hasn't been fetched already.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int n) {
+    this.checkIndex(n);
+    return this.getExternalId(n);
+  }
+
+  /**
+   *  Get the maximum number of entries that the list keeps.
+   *  @return The maximum number of entries, or 0 if the list is
+   *  unbounded.
+   */
+  public int getMaxSize() {
+    return this.maxSize;
+  }
+
+  /**
+   *  Get the score that a document must reach to be kept by a bounded
+   *  list.  A document whose score equals it may still be kept if its
+   *  external docid breaks the tie.
+   *  @return The score of the worst entry if the list is bounded and
+   *  full, otherwise negative infinity.
+   */
+  public double getThreshold() {
+    if ((this.maxSize == 0) || (this.size < this.maxSize))
+      return Double.NEGATIVE_INFINITY;
+
+    if (! this.heapOrder)
+      this.heapify();
+
+    return this.scores[0];
   }
 
   /**
@@ -69,7 +188,9 @@ public class ScoreList {
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
-    this.scores.get(n).score = score;
+    this.checkIndex(n);
+    this.scores[n] = score;
+    this.heapOrder = false;
   }
 
   /**
@@ -77,52 +198,148 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
-    return this.scores.size();
-  }
-
-  /*
-   *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
-   */
-  public class ScoreListComparator implements Comparator<ScoreListEntry> {
-
-    @Override
-    public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-      if (s1.score > s2.score)
-	return -1;
-      else
-	if (s1.score < s2.score)
-	  return 1;
-	else
-	  if (s1.externalId.compareTo(s2.externalId)<0) {
-	    return -1;
-	  } else
-	    if (s1.externalId.compareTo(s2.externalId)>0)
-	      return 1;
-	    else
-	      return 0;
-    }
+    return this.size;
   }
 
   /**
    *  Sort the list by score and external document id.
    */
   public void sort () {
-    Collections.sort(this.scores, new ScoreListComparator());
+
+    //  Heapsort.  Moving the worst remaining entry to the end of the
+    //  heap leaves the best entry first.
+
+    this.heapify();
+
+    for (int end = this.size - 1; end > 0; end--) {
+      this.swap(0, end);
+      this.siftDown(0, end);
+    }
+
+    this.heapOrder = false;
   }
- 
 
-  
- 
   /**
    * Reduce the score list to the first num results to save on RAM.
-   * 
+   *
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
-    List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-        Math.min(num, scores.size())));
-    this.scores.clear();
-    this.scores = truncated;
+    this.size = Math.min(num, this.size);
+
+    int capacity = Math.max(this.size, 1);
+
+    if (this.maxSize > 0)
+      capacity = Math.max(capacity, Math.min(this.maxSize + 1, INITIAL_CAPACITY));
+
+    this.docids = Arrays.copyOf(this.docids, capacity);
+    this.scores = Arrays.copyOf(this.scores, capacity);
+    this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+    this.heapOrder = false;
+  }
+
+  //  --------------- Array and heap utilities ----------------------
+
+  private void checkIndex(int n) {
+    if ((n < 0) || (n >= this.size))
+      throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
+  }
+
+  /**
+   *  Get the external docid of entry i, fetching it if necessary.
+   */
+  private String getExternalId(int i) {
+    if (this.externalIds[i] == null) {
+      try {
+	this.externalIds[i] = Idx.getExternalDocid(this.docids[i]);
+      }
+      catch (IOException ex){
+	ex.printStackTrace();
+      }
+
+      if (this.externalIds[i] == null)
+	this.externalIds[i] = "";
+    }
+    return this.externalIds[i];
+  }
+
+  /**
+   *  Rearrange the entries into a heap with the worst entry at the root.
+   */
+  private void heapify() {
+    for (int i = this.size / 2 - 1; i >= 0; i--)
+      this.siftDown(i, this.size);
+    this.heapOrder = true;
+  }
+
+  /**
+   *  Store an entry in slot i, growing the arrays if necessary.
+   */
+  private void set(int i, int docid, double score) {
+    if (i >= this.docids.length) {
+      int capacity = 2 * this.docids.length;
+
+      if (this.maxSize > 0)
+	capacity = Math.min(capacity, this.maxSize + 1);
+
+      this.docids = Arrays.copyOf(this.docids, capacity);
+      this.scores = Arrays.copyOf(this.scores, capacity);
+      this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+    }
+
+    this.docids[i] = docid;
+    this.scores[i] = score;
+    this.externalIds[i] = null;
+  }
+
+  /**
+   *  Move entry i toward the leaves of the first n entries until its
+   *  children rank before it.
+   */
+  private void siftDown(int i, int n) {
+    while (true) {
+      int worst = 2 * i + 1;
+
+      if (worst >= n)
+	break;
+
+      if ((worst + 1 < n) && (this.compare(worst + 1, worst) > 0))
+	worst++;
+
+      if (this.compare(worst, i) <= 0)
+	break;
+
+      this.swap(i, worst);
+      i = worst;
+    }
+  }
+
+  /**
+   *  Move entry i toward the root until its parent ranks after it.
+   */
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (this.compare(parent, i) >= 0)
+	break;
+
+      this.swap(parent, i);
+      i = parent;
+    }
+  }
+
+  private void swap(int i, int j) {
+    int d = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = d;
+
+    double s = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = s;
+
+    String e = this.externalIds[i];
+    this.externalIds[i] = this.externalIds[j];
+    this.externalIds[j] = e;
   }
 }
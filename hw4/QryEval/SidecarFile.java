@@ -0,0 +1,241 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  The parts of the file format that the per-term sidecars of an index
+ *  (see BlockMaxIndex and ImpactIndex) share, so that the formats
+ *  can't drift apart.  A sidecar starts with a magic number, a format
+ *  version, and the version of the index that it was built from, and
+ *  ends with the keys of its terms.  A key is the UTF-8 field name, a
+ *  0 byte, and the UTF-8 term; keys are sorted by unsigned bytes, and
+ *  a table of numTerms + 1 key offsets locates them.  Sidecars are
+ *  written to a temporary file that is renamed when it is complete.
+ */
+class SidecarFile {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Memory-map a sidecar of an index and check its header.
+   *  @param reader The index.
+   *  @param sidecar The sidecar file.
+   *  @param magic The magic number of the sidecar's format.
+   *  @param format The format version.
+   *  @param headerBytes The size of the sidecar's header.
+   *  @return The sidecar, or null if it doesn't exist, isn't in the
+   *  format, or was built from another version of the index.  The
+   *  caller checks the size of the rest of the file.
+   */
+  static ByteBuffer map (IndexReader reader, File sidecar,
+                         int magic, int format, int headerBytes) {
+
+    if (! ((reader instanceof DirectoryReader) && sidecar.isFile ())) {
+      return null;
+    }
+
+    try (RandomAccessFile f = new RandomAccessFile (sidecar, "r");
+         FileChannel channel = f.getChannel ()) {
+
+      if (channel.size () < headerBytes) {
+        return null;
+      }
+
+      ByteBuffer table = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((table.getInt (0) != magic) ||
+          (table.getInt (4) != format) ||
+          (table.getLong (8) != ((DirectoryReader) reader).getVersion ())) {
+        return null;
+      }
+
+      return table;
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   *  Get part of a sidecar.
+   *  @param table The sidecar.
+   *  @param start The first byte.
+   *  @param length The number of bytes.
+   *  @return The part, with its own position and limit.
+   */
+  static ByteBuffer slice (ByteBuffer table, int start, int length) {
+    ByteBuffer s = table.duplicate ();
+    s.limit (start + length).position (start);
+    return s.slice ();
+  }
+
+  /**
+   *  Binary search for the key of a term.
+   *  @param keyOffsets The key offsets.
+   *  @param keys The key bytes.
+   *  @param numTerms The number of terms.
+   *  @param field The field.
+   *  @param term The term.
+   *  @return The term number, or -1 if the term isn't found.
+   */
+  static int findKey (IntBuffer keyOffsets, ByteBuffer keys, int numTerms,
+                      String field, String term) {
+    byte[] key = key (field, new BytesRef (term));
+    int lo = 0;
+    int hi = numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int start = keyOffsets.get (mid);
+      int length = keyOffsets.get (mid + 1) - start;
+      int n = Math.min (length, key.length);
+      int c = 0;
+
+      for (int i = 0; (c == 0) && (i < n); i++) {
+        c = (keys.get (start + i) & 0xff) - (key[i] & 0xff);
+      }
+
+      if (c == 0) {
+        c = length - key.length;
+      }
+
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *  The key of a term:  field, a 0 byte, and term.
+   */
+  private static byte[] key (String field, BytesRef term) {
+    byte[] f = field.getBytes (StandardCharsets.UTF_8);
+    byte[] k = new byte[f.length + 1 + term.length];
+
+    System.arraycopy (f, 0, k, 0, f.length);
+    System.arraycopy (term.bytes, term.offset, k, f.length + 1, term.length);
+    return k;
+  }
+
+  /**
+   *  Write the start of a sidecar's header:  the magic number, format
+   *  version, and index version.
+   *  @param out The temporary file.
+   *  @param reader The index.
+   *  @param magic The magic number of the sidecar's format.
+   *  @param format The format version.
+   *  @throws IOException Error writing the file.
+   */
+  static void writeHeader (DataOutputStream out, IndexReader reader,
+                           int magic, int format) throws IOException {
+    out.writeInt (magic);
+    out.writeInt (format);
+    out.writeLong (((DirectoryReader) reader).getVersion ());
+  }
+
+  /**
+   *  Replace a sidecar with a completely written temporary file.
+   *  @param tmp The temporary file.
+   *  @param sidecar The sidecar file.
+   *  @throws IOException The file can't be renamed.
+   */
+  static void rename (File tmp, File sidecar) throws IOException {
+    if (! tmp.renameTo (sidecar)) {
+      throw new IOException ("Unable to write " + sidecar);
+    }
+  }
+
+  /**
+   *  The keys of a sidecar that is being built.  Terms must be added
+   *  in key order.
+   */
+  static class Keys {
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+    private IntArray offsets = new IntArray ();
+
+    Keys () {
+      this.offsets.add (0);
+    }
+
+    void add (String field, BytesRef term) {
+      byte[] k = key (field, term);
+      this.bytes.write (k, 0, k.length);
+      this.offsets.add (this.bytes.size ());
+    }
+
+    int getNumTerms () {
+      return this.offsets.size () - 1;
+    }
+
+    int getNumBytes () {
+      return this.bytes.size ();
+    }
+
+    void writeOffsets (DataOutputStream out) throws IOException {
+      this.offsets.write (out);
+    }
+
+    void writeBytes (DataOutputStream out) throws IOException {
+      this.bytes.writeTo (out);
+    }
+  }
+
+  /**
+   *  A growable array of ints.
+   */
+  static class IntArray {
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    void add (int v) {
+      if (this.size == this.values.length) {
+        this.values = Arrays.copyOf (this.values, 2 * this.size);
+      }
+      this.values[this.size++] = v;
+    }
+
+    void clear () {
+      this.size = 0;
+    }
+
+    void set (int i, int v) {
+      this.values[i] = v;
+    }
+
+    void setSize (int size) {
+      if (size > this.values.length) {
+        this.values = Arrays.copyOf (this.values,
+                                     Math.max (size, 2 * this.values.length));
+      }
+      this.size = size;
+    }
+
+    int get (int i) {
+      return this.values[i];
+    }
+
+    int size () {
+      return this.size;
+    }
+
+    void write (DataOutputStream out) throws IOException {
+      for (int i = 0; i < this.size; i++) {
+        out.writeInt (this.values[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *  Evaluates a flat query term-at-a-time (TAAT):  a BM25 #SUM, or an
+ *  Indri #AND, #WAND, or #WSUM, whose arguments are SCORE operators.
+ *  Document-at-a-time evaluation finds each document by checking every
+ *  argument (docIteratorHasMatchMin), which costs O(k) per document for
+ *  k arguments.  TAAT walks each argument's postings once and combines
+ *  its scores into a dense accumulator indexed by docid.  The docids
+ *  that are touched are listed, so only they are collected and reset.
+ *  <p>
+ *  Scores are combined in argument order with the operator's scorer
+ *  (see QrySop.CombiningScorer), so they are identical to
+ *  document-at-a-time scores.  For that reason the accumulator holds
+ *  doubles.  Indri combines the default scores of the arguments that
+ *  don't match a document.  Each document remembers the last argument
+ *  that was combined, and the defaults of the arguments that it
+ *  skipped are combined, in order, before the next match and when
+ *  documents are collected.
+ *  </p>
+ *  <p>
+ *  Accumulators are pooled.  An evaluation borrows a set and returns
+ *  it when it finishes, so there are only as many sets as there are
+ *  concurrent evaluations, and later queries reuse them.
+ *  </p>
+ */
+public class TaatEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Reusable accumulators, which SaatEvaluator shares.
+   */
+  static class Accumulators {
+
+    /**
+     *  The score of each touched document so far.
+     */
+    double[] scores = new double[0];
+
+    /**
+     *  The last argument that was combined into each document's score,
+     *  or -1 if the document isn't touched.
+     */
+    int[] lastArg = new int[0];
+
+    /**
+     *  The touched docids, in the order that they were touched.
+     */
+    int[] touched = new int[16];
+    int numTouched = 0;
+
+    /**
+     *  Make sure that the accumulators cover every docid.
+     */
+    void ensureCapacity (int maxDoc) {
+      if (this.scores.length < maxDoc) {
+        this.scores = new double[maxDoc];
+        this.lastArg = new int[maxDoc];
+        Arrays.fill (this.lastArg, -1);
+      }
+    }
+
+    void touch (int docid) {
+      if (this.numTouched == this.touched.length) {
+        this.touched = Arrays.copyOf (this.touched, 2 * this.touched.length);
+      }
+      this.touched[this.numTouched++] = docid;
+    }
+
+    /**
+     *  Reset the touched documents.
+     */
+    void reset () {
+      for (int t = 0; t < this.numTouched; t++) {
+        this.lastArg[this.touched[t]] = -1;
+      }
+
+      this.numTouched = 0;
+    }
+  }
+
+  /**
+   *  Accumulators that no evaluation is using.
+   */
+  private static final ConcurrentLinkedQueue<Accumulators> POOL =
+    new ConcurrentLinkedQueue<Accumulators> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Borrow accumulators that cover every docid of the current index
+   *  and have no touched documents.  They must be returned with
+   *  releaseAccumulators.
+   */
+  static Accumulators borrowAccumulators () {
+    Accumulators acc = POOL.poll ();
+
+    if (acc == null) {
+      acc = new Accumulators ();
+    }
+
+    acc.ensureCapacity (Idx.INDEXREADER.maxDoc ());
+    return acc;
+  }
+
+  /**
+   *  Reset borrowed accumulators and return them to the pool.
+   */
+  static void releaseAccumulators (Accumulators acc) {
+    acc.reset ();
+    POOL.offer (acc);
+  }
+
+  /**
+   *  Indicates whether a query can be evaluated term-at-a-time.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is a BM25 #SUM, or an Indri #AND, #WAND, or
+   *  #WSUM, of SCORE operators, and #AND and #WAND aren't scored in
+   *  log space.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! (((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25)) ||
+           (((q instanceof QrySopAnd) || (q instanceof QrySopWAnd) ||
+             (q instanceof QrySopWSum)) &&
+            (r instanceof RetrievalModelIndri)))) {
+      return false;
+    }
+
+    //  Log-space #AND and #WAND scorers don't combine arguments one at
+    //  a time.
+
+    if (((q instanceof QrySopAnd) || (q instanceof QrySopWAnd)) &&
+        ((RetrievalModelIndri) r).getLogSpace ()) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Combine the default scores of arguments first..end-1 into a
+   *  document's score.
+   */
+  private static double combineDefaults (QrySop.CombiningScorer scorer,
+                                         QrySopScore[] args, RetrievalModel r,
+                                         double score, int docid,
+                                         int first, int end)
+    throws IOException {
+
+    for (int j = first; j < end; j++) {
+      score = scorer.combine (score, j, args[j].getDefaultScore (r, docid));
+    }
+
+    return score;
+  }
+
+  /**
+   *  Evaluate an initialized query, adding every matching document to
+   *  a score list.
+   *  @param q The query.  canEvaluate must be true for it.
+   *  @param r The retrieval model.
+   *  @param results The score list.  If it is unbounded, documents are
+   *  added in docid order.
+   *  @return The number of documents that were scored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int evaluate (Qry q, RetrievalModel r, ScoreList results)
+    throws IOException {
+
+    QrySop.CombiningScorer scorer =
+      (QrySop.CombiningScorer) ((QrySop) q).getScorer ();
+    boolean defaults = scorer.usesDefaultScores ();
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+    }
+
+    Accumulators acc = borrowAccumulators ();
+    double[] scores = acc.scores;
+    int[] lastArg = acc.lastArg;
+
+    try {
+
+      //  Walk each argument's postings, combining its scores.
+
+      for (int i = 0; i < n; i++) {
+        QryIop postings = (QryIop) args[i].args.get (0);
+
+        while (postings.docIteratorHasMatch (r)) {
+          int docid = postings.docIteratorGetMatch ();
+          double score;
+
+          if (lastArg[docid] < 0) {
+            acc.touch (docid);
+            score = scorer.getInitialScore ();
+
+            if (defaults) {
+              score = combineDefaults (scorer, args, r, score, docid, 0, i);
+            }
+          } else {
+            score = scores[docid];
+
+            if (defaults) {
+              score = combineDefaults (scorer, args, r, score, docid,
+                                       lastArg[docid] + 1, i);
+            }
+          }
+
+          scores[docid] = scorer.combine (score, i, args[i].getScore (r));
+          lastArg[docid] = i;
+          postings.docIteratorAdvancePast (docid);
+        }
+      }
+
+      //  Collect the touched documents.  A bounded list keeps the best
+      //  documents in any order, but an unbounded list is in the order
+      //  that documents are added.
+
+      int[] touched = acc.touched;
+      int numTouched = acc.numTouched;
+
+      if (results.getMaxSize () == 0) {
+        Arrays.sort (touched, 0, numTouched);
+      }
+
+      for (int t = 0; t < numTouched; t++) {
+        int docid = touched[t];
+        double score = scores[docid];
+
+        if (defaults) {
+          score = combineDefaults (scorer, args, r, score, docid,
+                                   lastArg[docid] + 1, n);
+        }
+
+        results.add (docid, score);
+      }
+
+      return numTouched;
+    } finally {
+
+      releaseAccumulators (acc);
+    }
+  }
+}